@@ -0,0 +1,201 @@
+/**
+ * Copyright 2016 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package jcanny;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * This class gives access to every intermediate product of the detector. Each product is computed the first time
+ * it is asked for, from the products before it, and kept for later calls; asking only for the magnitude never runs
+ * suppression or hysteresis, and asking for several products runs each stage once.
+ * 
+ * The arrays returned are the ones kept here, not copies, so callers must not modify them.
+ * 
+ * @author robert
+ */
+
+public class CannyPipeline {
+    private static final double GAUSSIAN_INTENSITY = 1.5;
+    
+    private final int numDev;       //Number of standard deviations above mean for high threshold
+    private final double tFract;    //Low threshold is this fraction of high threshold
+    private final double intens;    //Intensity (sigma) of the Gaussian blur
+    private BufferedImage img;      //Source image, dropped once converted to grayscale
+    private int[][] gray;
+    private int[][] blurred;
+    private int[][] gx;
+    private int[][] gy;
+    private float[][] mag;
+    private byte[][] dir;
+    private float[][] suppressed;
+    private EdgeMap edges;
+    private int[] stats;            //Mean and standard deviation of the magnitude
+    
+    /**
+     * @param img               A BufferedImage that is to undergo Canny edge detector.
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     */
+    public CannyPipeline(BufferedImage img, int numberDeviations, double fract) {
+        this(img, null, numberDeviations, fract, GAUSSIAN_INTENSITY);
+    }
+    
+    /**
+     * @param img               A BufferedImage that is to undergo Canny edge detector.
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @param intens            Intensity (sigma) of the Gaussian blur
+     */
+    public CannyPipeline(BufferedImage img, int numberDeviations, double fract, double intens) {
+        this(img, null, numberDeviations, fract, intens);
+    }
+    
+    /**
+     * @param gray              int[][], grayscale pixel values 0-255
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @param intens            Intensity (sigma) of the Gaussian blur
+     */
+    public CannyPipeline(int[][] gray, int numberDeviations, double fract, double intens) {
+        this(null, gray, numberDeviations, fract, intens);
+    }
+    
+    private CannyPipeline(BufferedImage img, int[][] gray, int numberDeviations, double fract, double intens) {
+        if ((img == null && gray == null) || numberDeviations <= 0 || fract <= 0 || intens <= 0) {
+            throw new IllegalArgumentException("ERROR: Invalid detector parameters!");
+        }
+        
+        this.img = img;
+        this.gray = gray;
+        this.numDev = numberDeviations;
+        this.tFract = fract;
+        this.intens = intens;
+    }
+    
+    public synchronized int[][] getGray() {
+        if (gray == null) {
+            gray = ImageUtils.GSArray(img);
+            img = null;
+        }
+        
+        return gray;
+    }
+    
+    public synchronized int[][] getBlurred() {
+        if (blurred == null) {
+            blurred = JCanny.Blur(getGray(), intens);
+        }
+        
+        return blurred;
+    }
+    
+    /**
+     * @return gx   int[][], blurred image convolved with the horizontal Sobel mask
+     */
+    public synchronized int[][] getGradientX() {
+        if (gx == null) {
+            gx = Sobel.Horizontal(getBlurred());
+        }
+        
+        return gx;
+    }
+    
+    /**
+     * @return gy   int[][], blurred image convolved with the vertical Sobel mask
+     */
+    public synchronized int[][] getGradientY() {
+        if (gy == null) {
+            gy = Sobel.Vertical(getBlurred());
+        }
+        
+        return gy;
+    }
+    
+    /**
+     * @return mag  float[][], gradient magnitude before suppression
+     */
+    public synchronized float[][] getMagnitude() {
+        if (mag == null) {
+            stats = new int[2];
+            mag = JCanny.Magnitude(getGradientX(), getGradientY(), stats);
+        }
+        
+        return mag;
+    }
+    
+    /**
+     * @return dir  byte[][], gradient direction codes: 0, 1, 2, 3 for 0, 45, 90 and 135 degrees
+     */
+    public synchronized byte[][] getDirection() {
+        if (dir == null) {
+            dir = JCanny.Direction(getGradientX(), getGradientY());
+        }
+        
+        return dir;
+    }
+    
+    /**
+     * @return mean int, mean gradient magnitude
+     */
+    public synchronized int getMean() {
+        getMagnitude();
+        
+        return stats[0];
+    }
+    
+    /**
+     * @return stDev    int, standard deviation of the gradient magnitude
+     */
+    public synchronized int getStDev() {
+        getMagnitude();
+        
+        return stats[1];
+    }
+    
+    /**
+     * @return suppressed   float[][], gradient magnitude after non-maximum suppression
+     */
+    public synchronized float[][] getSuppressed() {
+        if (suppressed == null) {
+            float[][] source = getMagnitude();
+            
+            suppressed = new float[source.length][];
+            
+            for (int r = 0; r < source.length; r++) {
+                suppressed[r] = source[r].clone();
+            }
+            
+            JCanny.Suppression(suppressed, getDirection());
+        }
+        
+        return suppressed;
+    }
+    
+    /**
+     * @return edges    EdgeMap, the detected edges, same as JCanny.CannyEdgeMap
+     */
+    public synchronized EdgeMap getEdges() {
+        if (edges == null) {
+            float[][] source = getSuppressed();
+            
+            edges = JCanny.Hysteresis(source, getMean(), getStDev(), numDev, tFract);
+        }
+        
+        return edges;
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2016 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package jcanny;
+
+/**
+ * This class holds the hysteresis classification of each pixel (none, weak or strong) in 2 bits,
+ * 32 pixels per long.
+ * 
+ * @author robert
+ */
+
+public class ClassMap {
+    public static final int NONE = 0;      //Below low threshold
+    public static final int WEAK = 1;      //Between low and high threshold, edge only if next to a strong pixel
+    public static final int STRONG = 2;    //At or above high threshold
+    
+    private final int height;
+    private final int width;
+    private final long[] bits;
+    
+    public ClassMap(int height, int width) {
+        if (height < 0 || width < 0 || (long) height * width > 32L * Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("ERROR: Invalid class map size!");
+        }
+        
+        this.height = height;
+        this.width = width;
+        this.bits = new long[(int) (((long) height * width + 31) >>> 5)];
+    }
+    
+    /**
+     * Send this method a suppressed magnitude plane and the hysteresis thresholds to get the class of every pixel.
+     * 
+     * @param mag       float[][], suppressed gradient magnitude
+     * @param tHi       double, high threshold
+     * @param tLo       double, low threshold
+     * @return classes  ClassMap, same size as the magnitude plane
+     */
+    public static ClassMap Classify(float[][] mag, double tHi, double tLo) {
+        int height = mag.length;
+        int width = mag[0].length;
+        ClassMap classes = new ClassMap(height, width);
+        
+        for (int r = 0; r < height; r++) {
+            classes.setRow(r, mag[r], tHi, tLo);
+        }
+        
+        return classes;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int get(int r, int c) {
+        long i = ((long) r * width + c) << 1;
+        
+        return (int) (bits[(int) (i >>> 6)] >>> i) & 3;
+    }
+    
+    /**
+     * Set a pixel's class. Pixels start as NONE and are expected to be set once.
+     */
+    public void set(int r, int c, int cls) {
+        long i = ((long) r * width + c) << 1;
+        int w = (int) (i >>> 6);
+        
+        bits[w] = (bits[w] & ~(3L << i)) | ((long) cls << i);
+    }
+    
+    /**
+     * Classify a single row of suppressed magnitude into this map.
+     * 
+     * @param r     int, row to fill
+     * @param row   float[], suppressed magnitude of that row
+     * @param tHi   double, high threshold
+     * @param tLo   double, low threshold
+     */
+    public void setRow(int r, float[] row, double tHi, double tLo) {
+        for (int c = 0; c < width; c++) {
+            double magnitude = row[c];
+            
+            if (magnitude >= tHi) {
+                set(r, c, STRONG);
+            } else if (magnitude >= tLo) {
+                set(r, c, WEAK);
+            }
+        }
+    }
+}
@@ -0,0 +1,607 @@
+/**
+ * Copyright 2016 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package jcanny;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * This class sits in front of the detector and remembers its results. The key is a 128-bit hash of the pixels
+ * together with the size, the detection parameters and the blur the detector would use, so a duplicate upload
+ * or a retried job costs one pass over the raster instead of a detection.
+ * 
+ * Only the standard types with a fixed color model (RGB, ARGB, BGR, 3- and 4-byte BGR, byte and ushort gray) are
+ * hashed from their backing array. Any other image, for example an indexed one whose palette is not part of
+ * the raster, is converted to grayscale and the gray values are hashed.
+ * 
+ * The memory tier is least-recently-used, bounded by the bytes of the cached bitsets. The optional disk tier
+ * keeps results as deflated bitsets ("JCEDGE1", height and width as ints, then the words) in one file per
+ * key; results evicted from memory are read back from there. It has its own byte bound: when a write takes it
+ * over, the least recently used files are deleted until it is back under three quarters of the bound. A disk
+ * error only costs a detection.
+ * 
+ * Results are returned as copies, so callers may modify them.
+ * 
+ * @author robert
+ */
+
+public class EdgeCache {
+    private static final String MAGIC = "JCEDGE1";
+    private static final long ENTRY_OVERHEAD = 96;      //Rough bytes per entry besides the bitset
+    private static final long P1 = 0x9E3779B97F4A7C15L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    
+    private final long maxBytes;
+    private final File dir;
+    private final long maxDiskBytes;
+    private final LinkedHashMap<Key, EdgeMap> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private long bytes;
+    private long diskBytes;
+    
+    /**
+     * @param maxBytes  long, memory the cached bitsets may use
+     */
+    public EdgeCache(long maxBytes) {
+        this(maxBytes, null, 0);
+    }
+    
+    /**
+     * @param maxBytes      long, memory the cached bitsets may use
+     * @param dir           File, directory for the disk tier, created if missing; null for memory only
+     * @param maxDiskBytes  long, space the files in dir may use
+     */
+    public EdgeCache(long maxBytes, File dir, long maxDiskBytes) {
+        if (maxBytes < 0 || maxDiskBytes < 0 || (dir != null && !dir.isDirectory() && !dir.mkdirs())) {
+            throw new IllegalArgumentException("ERROR: Invalid cache size or directory!");
+        }
+        
+        this.maxBytes = maxBytes;
+        this.dir = dir;
+        this.maxDiskBytes = maxDiskBytes;
+        
+        //Files left by an earlier run count against the bound
+        for (File file : Files(dir)) {
+            diskBytes += file.length();
+        }
+        
+        //Temporary files are left only by a process that died mid-write; another cache still writing here
+        //loses just that entry's disk copy
+        File[] stale = (dir != null) ? dir.listFiles((d, name) -> name.startsWith("edges") && name.endsWith(".tmp"))
+                : null;
+        
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+        
+        TrimDisk();
+    }
+    
+    /**
+     * Same as JCanny.CannyEdgeMap, returning a cached result when this image and these parameters were seen before.
+     * 
+     * @param img               A BufferedImage that is to undergo Canny edge detector.
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @param intens            Intensity (sigma) of the Gaussian blur
+     * @return edges            EdgeMap, one bit per pixel, set for edge pixels. Null if parameters are invalid.
+     */
+    public EdgeMap CannyEdgeMap(BufferedImage img, int numberDeviations, double fract, double intens) {
+        if (img == null) {
+            return null;
+        }
+        
+        WritableRaster raster = img.getRaster();
+        int[][] gray = null;
+        long[] hash;
+        
+        //Hash the backing array directly only when its samples alone decide the pixels and it is not a window
+        if (FixedColors(img.getType()) && raster.getParent() == null && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0 && raster.getDataBuffer().getNumBanks() == 1) {
+            hash = Hash(raster.getDataBuffer());
+        } else {
+            hash = null;
+        }
+        
+        if (hash == null) {
+            gray = ImageUtils.GSArray(img);
+            hash = Hash(gray);
+        }
+        
+        Key key = new Key(hash, img.getType(), img.getHeight(), img.getWidth(), numberDeviations, fract, intens);
+        EdgeMap edges = Lookup(key);
+        
+        if (edges == null) {
+            edges = JCanny.CannyEdgeMap((gray != null) ? gray : ImageUtils.GSArray(img), numberDeviations, fract, intens);
+            Store(key, edges);
+        }
+        
+        return edges;
+    }
+    
+    /**
+     * Same as JCanny.CannyEdgeMap for a grayscale array, returning a cached result when possible.
+     * 
+     * @param raw               int[][], grayscale pixel values 0-255
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @param intens            Intensity (sigma) of the Gaussian blur
+     * @return edges            EdgeMap, one bit per pixel, set for edge pixels. Null if parameters are invalid.
+     */
+    public EdgeMap CannyEdgeMap(int[][] raw, int numberDeviations, double fract, double intens) {
+        if (raw == null || raw.length == 0) {
+            return null;
+        }
+        
+        Key key = new Key(Hash(raw), -1, raw.length, raw[0].length, numberDeviations, fract, intens);
+        EdgeMap edges = Lookup(key);
+        
+        if (edges == null) {
+            edges = JCanny.CannyEdgeMap(raw, numberDeviations, fract, intens);
+            Store(key, edges);
+        }
+        
+        return edges;
+    }
+    
+    public long getHits() {
+        return hits.sum();
+    }
+    
+    /**
+     * @return hits long, lookups answered from the disk tier (also counted in getHits)
+     */
+    public long getDiskHits() {
+        return diskHits.sum();
+    }
+    
+    public long getMisses() {
+        return misses.sum();
+    }
+    
+    public long getEvictions() {
+        return evictions.sum();
+    }
+    
+    /**
+     * @return bytes long, memory currently held by cached bitsets
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+    
+    /**
+     * @return bytes long, space currently used by the disk tier's files
+     */
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+    
+    /**
+     * Drop the memory tier. The disk tier is left alone.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+    
+    private EdgeMap Lookup(Key key) {
+        EdgeMap edges;
+        
+        synchronized (this) {
+            edges = entries.get(key);
+        }
+        
+        if (edges == null && dir != null) {
+            edges = Read(key);
+            
+            if (edges != null) {
+                diskHits.increment();
+                Remember(key, edges);
+            }
+        }
+        
+        if (edges == null) {
+            misses.increment();
+            return null;
+        }
+        
+        hits.increment();
+        
+        return Copy(edges);
+    }
+    
+    private void Store(Key key, EdgeMap edges) {
+        if (edges == null) {
+            return;
+        }
+        
+        EdgeMap copy = Copy(edges);
+        
+        Remember(key, copy);
+        
+        if (dir != null) {
+            Write(key, copy);
+        }
+    }
+    
+    private synchronized void Remember(Key key, EdgeMap edges) {
+        long size = Size(edges);
+        
+        if (size > maxBytes) {
+            return;
+        }
+        
+        EdgeMap old = entries.put(key, edges);
+        
+        bytes += size - ((old != null) ? Size(old) : 0);
+        
+        //Access order puts the least recently used entry first
+        Iterator<Map.Entry<Key, EdgeMap>> it = entries.entrySet().iterator();
+        
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= Size(it.next().getValue());
+            it.remove();
+            evictions.increment();
+        }
+    }
+    
+    private static long Size(EdgeMap edges) {
+        return 8L * edges.getBits().length + ENTRY_OVERHEAD;
+    }
+    
+    private static EdgeMap Copy(EdgeMap edges) {
+        return new EdgeMap(edges.getHeight(), edges.getWidth(), edges.getBits().clone());
+    }
+    
+    private EdgeMap Read(Key key) {
+        File file = new File(dir, key.FileName());
+        
+        if (!file.isFile()) {
+            return null;
+        }
+        
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new FileInputStream(file))))) {
+            byte[] magic = new byte[MAGIC.length()];
+            
+            in.readFully(magic);
+            
+            int height = in.readInt();
+            int width = in.readInt();
+            int crop = 2 * JCanny.BlurRadius(key.intens) + 4;
+            
+            //Guard against a hash collision in the file name by checking the whole key
+            if (!MAGIC.equals(new String(magic, "US-ASCII")) || in.readInt() != key.type
+                    || in.readInt() != key.height || in.readInt() != key.width || in.readInt() != key.numDev
+                    || in.readDouble() != key.fract || in.readDouble() != key.intens || in.readInt() != key.blur
+                    || in.readLong() != key.hash[0] || in.readLong() != key.hash[1]) {
+                return null;
+            }
+            
+            //A damaged file must not decide how much is allocated
+            if (height != key.height - crop || width != key.width - crop) {
+                return null;
+            }
+            
+            //Mark it recently used for TrimDisk
+            file.setLastModified(System.currentTimeMillis());
+            
+            long[] bits = new long[(int) (((long) height * width + 63) >>> 6)];
+            
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            
+            return new EdgeMap(height, width, bits);
+        } catch (IOException | RuntimeException ex) {
+            return null;
+        }
+    }
+    
+    private void Write(Key key, EdgeMap edges) {
+        File file = new File(dir, key.FileName());
+        
+        if (8L * edges.getBits().length > maxDiskBytes) {
+            return;
+        }
+        
+        File temp = null;
+        boolean moved = false;
+        
+        try {
+            temp = File.createTempFile("edges", ".tmp", dir);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(new FileOutputStream(temp), deflater)))) {
+                out.writeBytes(MAGIC);
+                out.writeInt(edges.getHeight());
+                out.writeInt(edges.getWidth());
+                out.writeInt(key.type);
+                out.writeInt(key.height);
+                out.writeInt(key.width);
+                out.writeInt(key.numDev);
+                out.writeDouble(key.fract);
+                out.writeDouble(key.intens);
+                out.writeInt(key.blur);
+                out.writeLong(key.hash[0]);
+                out.writeLong(key.hash[1]);
+                
+                for (long word : edges.getBits()) {
+                    out.writeLong(word);
+                }
+            } finally {
+                deflater.end();
+            }
+            
+            long old = file.length();
+            
+            //Readers see either no file or a complete one
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+            
+            synchronized (this) {
+                diskBytes += file.length() - old;
+            }
+            
+            TrimDisk();
+        } catch (IOException ex) {
+            //The result is still in memory; the disk tier just misses it
+        } finally {
+            if (temp != null && !moved) {
+                temp.delete();
+            }
+        }
+    }
+    
+    /*
+     * Delete least recently used files until the disk tier is under three quarters of its bound, so the
+     * directory is listed once per batch of writes rather than on every one.
+     */
+    private synchronized void TrimDisk() {
+        if (diskBytes <= maxDiskBytes) {
+            return;
+        }
+        
+        List<File> files = Files(dir);
+        
+        files.sort(Comparator.comparingLong(File::lastModified));
+        diskBytes = 0;
+        
+        for (File file : files) {
+            diskBytes += file.length();
+        }
+        
+        for (File file : files) {
+            if (diskBytes <= maxDiskBytes / 4 * 3) {
+                break;
+            }
+            
+            long size = file.length();
+            
+            if (file.delete()) {
+                diskBytes -= size;
+            }
+        }
+    }
+    
+    private static List<File> Files(File dir) {
+        List<File> files = new ArrayList<>();
+        File[] list = (dir != null) ? dir.listFiles() : null;
+        
+        if (list != null) {
+            for (File file : list) {
+                if (file.isFile() && file.getName().endsWith(".edges")) {
+                    files.add(file);
+                }
+            }
+        }
+        
+        return files;
+    }
+    
+    /*
+     * Image types whose backing array holds the pixel colors themselves, with nothing in the color model
+     * (a palette, an unusual layout) that the hash would miss.
+     */
+    private static boolean FixedColors(int type) {
+        switch (type) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_BYTE_GRAY:
+            case BufferedImage.TYPE_USHORT_GRAY:
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /*
+     * 128-bit hash of a raster's backing array: two multiply-rotate lanes over 64-bit words.
+     */
+    private static long[] Hash(DataBuffer data) {
+        long[] lanes = { P1, P2 };
+        
+        if (data instanceof DataBufferByte) {
+            byte[] array = ((DataBufferByte) data).getData();
+            ByteBuffer buf = ByteBuffer.wrap(array).order(ByteOrder.LITTLE_ENDIAN);
+            int i = 0;
+            
+            for (; i + 8 <= array.length; i += 8) {
+                Mix(lanes, buf.getLong(i));
+            }
+            
+            for (; i < array.length; i++) {
+                Mix(lanes, array[i]);
+            }
+            
+            return Finish(lanes, array.length);
+        } else if (data instanceof DataBufferInt) {
+            int[] array = ((DataBufferInt) data).getData();
+            int i = 0;
+            
+            for (; i + 2 <= array.length; i += 2) {
+                Mix(lanes, ((long) array[i] << 32) | (array[i + 1] & 0xFFFFFFFFL));
+            }
+            
+            for (; i < array.length; i++) {
+                Mix(lanes, array[i]);
+            }
+            
+            return Finish(lanes, array.length);
+        } else if (data instanceof DataBufferUShort) {
+            short[] array = ((DataBufferUShort) data).getData();
+            
+            for (int i = 0; i < array.length; i++) {
+                Mix(lanes, array[i]);
+            }
+            
+            return Finish(lanes, array.length);
+        }
+        
+        return null;
+    }
+    
+    private static long[] Hash(int[][] raw) {
+        long[] lanes = { P1, P2 };
+        
+        for (int[] row : raw) {
+            int i = 0;
+            
+            for (; i + 2 <= row.length; i += 2) {
+                Mix(lanes, ((long) row[i] << 32) | (row[i + 1] & 0xFFFFFFFFL));
+            }
+            
+            for (; i < row.length; i++) {
+                Mix(lanes, row[i]);
+            }
+            
+            Mix(lanes, row.length);
+        }
+        
+        return Finish(lanes, raw.length);
+    }
+    
+    private static void Mix(long[] lanes, long value) {
+        lanes[0] = Long.rotateLeft((lanes[0] ^ value) * P1, 31);
+        lanes[1] = Long.rotateLeft((lanes[1] + value) * P2, 27) ^ lanes[0];
+    }
+    
+    private static long[] Finish(long[] lanes, long length) {
+        lanes[0] = Avalanche(lanes[0] ^ length);
+        lanes[1] = Avalanche(lanes[1] ^ lanes[0]);
+        
+        return lanes;
+    }
+    
+    private static long Avalanche(long h) {
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        
+        return h ^ (h >>> 33);
+    }
+    
+    private static class Key {
+        final long[] hash;
+        final int type;         //BufferedImage type the hash was taken over, -1 for grayscale arrays
+        final int height;
+        final int width;
+        final int numDev;
+        final double fract;
+        final double intens;
+        final int blur;         //Which blur the detector would use, since it can be switched at run time
+        
+        Key(long[] hash, int type, int height, int width, int numDev, double fract, double intens) {
+            this.hash = hash;
+            this.type = type;
+            this.height = height;
+            this.width = width;
+            this.numDev = numDev;
+            this.fract = fract;
+            this.intens = intens;
+            this.blur = JCanny.BlurMode(intens);
+        }
+        
+        String FileName() {
+            return String.format("%016x%016x-%08x.edges", hash[0], hash[1], hashCode());
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            
+            Key k = (Key) o;
+            
+            return Arrays.equals(hash, k.hash) && type == k.type && height == k.height && width == k.width
+                    && numDev == k.numDev && fract == k.fract && intens == k.intens && blur == k.blur;
+        }
+        
+        @Override
+        public int hashCode() {
+            int h = Arrays.hashCode(hash);
+            
+            h = 31 * h + type;
+            h = 31 * h + height;
+            h = 31 * h + width;
+            h = 31 * h + numDev;
+            h = 31 * h + Double.hashCode(fract);
+            h = 31 * h + Double.hashCode(intens);
+            
+            return 31 * h + blur;
+        }
+    }
+}
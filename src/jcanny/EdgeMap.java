@@ -0,0 +1,134 @@
+/**
+ * Copyright 2016 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package jcanny;
+
+/**
+ * This class holds a binary edge image as a bitset, one bit per pixel, row-major, 64 pixels per long.
+ * It is 32 times smaller than the int[][] of 0/255 values the detector used to produce.
+ * 
+ * @author robert
+ */
+
+public class EdgeMap {
+    private final int height;
+    private final int width;
+    private final long[] bits;
+    
+    /**
+     * Create an empty (all non-edge) map.
+     * 
+     * @param height    int, number of rows
+     * @param width     int, number of columns
+     */
+    public EdgeMap(int height, int width) {
+        if (height < 0 || width < 0 || (long) height * width > 64L * Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("ERROR: Invalid edge map size!");
+        }
+        
+        this.height = height;
+        this.width = width;
+        this.bits = new long[(int) (((long) height * width + 63) >>> 6)];
+    }
+    
+    /**
+     * Wrap existing bitset words, such as ones read back from a stream.
+     * 
+     * @param height    int, number of rows
+     * @param width     int, number of columns
+     * @param bits      long[], row-major bits, 64 pixels per word, least significant bit first
+     */
+    public EdgeMap(int height, int width, long[] bits) {
+        if (height < 0 || width < 0 || bits.length != (int) (((long) height * width + 63) >>> 6)) {
+            throw new IllegalArgumentException("ERROR: Bitset does not match edge map size!");
+        }
+        
+        this.height = height;
+        this.width = width;
+        this.bits = bits;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * @return bits long[], the backing words (not a copy)
+     */
+    public long[] getBits() {
+        return bits;
+    }
+    
+    /**
+     * @return copy EdgeMap, the same size and edges in new words
+     */
+    public EdgeMap copy() {
+        return new EdgeMap(height, width, bits.clone());
+    }
+    
+    public boolean get(int r, int c) {
+        long i = (long) r * width + c;
+        
+        return (bits[(int) (i >>> 6)] & (1L << i)) != 0;
+    }
+    
+    public void set(int r, int c) {
+        long i = (long) r * width + c;
+        
+        bits[(int) (i >>> 6)] |= (1L << i);
+    }
+    
+    public void clear(int r, int c) {
+        long i = (long) r * width + c;
+        
+        bits[(int) (i >>> 6)] &= ~(1L << i);
+    }
+    
+    /**
+     * @return count long, number of edge pixels
+     */
+    public long cardinality() {
+        long count = 0;
+        
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Send this method nothing to get the map as the int[][] of 0/255 values the detector used to return.
+     * 
+     * @return bin  int[][], 255 for edge pixels, 0 otherwise
+     */
+    public int[][] toArray() {
+        int[][] bin = new int[height][width];
+        
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                bin[r][c] = get(r, c) ? 255 : 0;
+            }
+        }
+        
+        return bin;
+    }
+}
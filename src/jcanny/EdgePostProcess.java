@@ -0,0 +1,318 @@
+/**
+ * Copyright 2016 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package jcanny;
+
+import java.util.Arrays;
+
+/**
+ * This class cleans up an EdgeMap in place after hysteresis, working directly on its bitset words:
+ * 
+ * Thin     removes pixels that have a horizontal and a vertical neighbor and are not needed to keep their
+ *          neighbors connected, so two-pixel-wide lines and diagonal steps become one pixel wide without
+ *          breaking or shortening them; pixels are visited once in raster order
+ * Bridge   extends each line end straight on, along the edge (perpendicular to its gradient), and fills the gap
+ *          if it reaches another edge pixel within the given distance
+ * Prune    removes 8-connected components smaller than a minimum number of pixels
+ * 
+ * Each step costs time in proportion to the map's words plus its edge pixels, and memory for one extra bitset
+ * and the pixels of the largest component. There is no BufferedImage or boxed point list anywhere.
+ * 
+ * @author robert
+ */
+
+public class EdgePostProcess {
+    //Neighbors counterclockwise from east: E, NE, N, NW, W, SW, S, SE
+    private static final int[] DR = { 0, -1, -1, -1, 0, 1, 1, 1 };
+    private static final int[] DC = { 1, 1, 0, -1, -1, -1, 0, 1 };
+    
+    /**
+     * Thin, bridge, then prune, so fragments that a bridge joins are kept.
+     * 
+     * @param edges     EdgeMap, modified in place; pass a copy of a map that is shared, such as the one
+     *                  CannyPipeline.getEdges keeps
+     * @param dir       byte[][], gradient direction codes from CannyPipeline.getDirection, or null to bridge
+     *                  straight on from each line's last step instead
+     * @param minLength int, smallest component, in pixels, to keep
+     * @param maxGap    int, longest gap, in pixels, to bridge
+     * @return edges    EdgeMap, the same map
+     */
+    public static EdgeMap PostProcess(EdgeMap edges, byte[][] dir, int minLength, int maxGap) {
+        Thin(edges);
+        
+        if (dir != null) {
+            Bridge(edges, dir, maxGap);
+        } else {
+            Bridge(edges, maxGap);
+        }
+        
+        Prune(edges, minLength);
+        
+        return edges;
+    }
+    
+    /**
+     * Remove redundant pixels from thick lines and diagonal steps. A pixel goes if it has a horizontal and a vertical
+     * neighbor and its neighbors stay 8-connected without it (Yokoi connectivity number 1). Line ends, which have
+     * one neighbor, and pixels inside solid areas, which have no empty neighbor, always stay.
+     * 
+     * @param edges     EdgeMap, modified in place
+     * @return removed  long, number of pixels removed
+     */
+    public static long Thin(EdgeMap edges) {
+        long[] bits = edges.getBits();
+        int height = edges.getHeight();
+        int width = edges.getWidth();
+        boolean[] x = new boolean[8];
+        long removed = 0;
+        
+        for (int w = 0; w < bits.length; w++) {
+            for (long word = bits[w]; word != 0; word &= word - 1) {
+                long i = ((long) w << 6) + Long.numberOfTrailingZeros(word);
+                int r = (int) (i / width);
+                int c = (int) (i % width);
+                
+                for (int k = 0; k < 8; k++) {
+                    x[k] = Get(bits, height, width, r + DR[k], c + DC[k]);
+                }
+                
+                if (!(x[0] || x[4]) || !(x[2] || x[6])) {
+                    continue;
+                }
+                
+                //Yokoi 8-connectivity number: empty 4-neighbors followed, counterclockwise, by a set pixel
+                int connectivity = 0;
+                
+                for (int k = 0; k < 8; k += 2) {
+                    if (!x[k] && (x[k + 1] || x[(k + 2) & 7])) {
+                        connectivity++;
+                    }
+                }
+                
+                if (connectivity == 1) {
+                    bits[w] &= ~(1L << i);
+                    removed++;
+                }
+            }
+        }
+        
+        return removed;
+    }
+    
+    /**
+     * Bridge gaps along the edge direction the gradient gives. A line end is a pixel with exactly one neighbor;
+     * it steps along the edge (at right angles to the neighbors suppression compared it with), away from that
+     * neighbor, and if an edge pixel lies 2 to maxGap + 1 steps away the pixels between are set. Ends whose
+     * line does not run along their edge direction are left alone, as are ends whose gap an earlier bridge from
+     * the other side has already closed.
+     * 
+     * @param edges     EdgeMap, modified in place
+     * @param dir       byte[][], gradient direction codes, two larger than the map in each dimension
+     *                  (the border hysteresis drops), as CannyPipeline.getDirection returns them
+     * @param maxGap    int, longest gap, in pixels, to bridge
+     * @return filled   long, number of pixels that were clear and are now set
+     */
+    public static long Bridge(EdgeMap edges, byte[][] dir, int maxGap) {
+        if (dir.length != edges.getHeight() + 2 || (dir.length > 0 && dir[0].length != edges.getWidth() + 2)) {
+            throw new IllegalArgumentException("ERROR: Direction plane does not match edge map!");
+        }
+        
+        return Bridge(edges, dir, maxGap, true);
+    }
+    
+    /**
+     * Bridge gaps by stepping straight on from each line end, away from its one neighbor, for when no
+     * direction plane is at hand.
+     * 
+     * @param edges     EdgeMap, modified in place
+     * @param maxGap    int, longest gap, in pixels, to bridge
+     * @return filled   long, number of pixels that were clear and are now set
+     */
+    public static long Bridge(EdgeMap edges, int maxGap) {
+        return Bridge(edges, null, maxGap, false);
+    }
+    
+    /**
+     * Remove 8-connected components with fewer than minLength pixels.
+     * 
+     * @param edges     EdgeMap, modified in place
+     * @param minLength int, smallest component, in pixels, to keep
+     * @return removed  long, number of pixels removed
+     */
+    public static long Prune(EdgeMap edges, int minLength) {
+        long[] bits = edges.getBits();
+        long[] seen = new long[bits.length];
+        int height = edges.getHeight();
+        int width = edges.getWidth();
+        long[] component = new long[64];
+        long removed = 0;
+        
+        for (int w = 0; w < bits.length; w++) {
+            for (long word = bits[w] & ~seen[w]; word != 0; word = bits[w] & ~seen[w]) {
+                long start = ((long) w << 6) + Long.numberOfTrailingZeros(word);
+                int size = 0;
+                
+                //Flood fill, using the component list itself as the queue
+                seen[w] |= 1L << start;
+                component[size++] = start;
+                
+                for (int head = 0; head < size; head++) {
+                    long i = component[head];
+                    int r = (int) (i / width);
+                    int c = (int) (i % width);
+                    
+                    for (int k = 0; k < 8; k++) {
+                        int nr = r + DR[k];
+                        int nc = c + DC[k];
+                        
+                        if (Get(bits, height, width, nr, nc)) {
+                            long n = (long) nr * width + nc;
+                            
+                            if ((seen[(int) (n >>> 6)] & (1L << n)) == 0) {
+                                seen[(int) (n >>> 6)] |= 1L << n;
+                                
+                                if (size == component.length) {
+                                    component = Arrays.copyOf(component, size * 2);
+                                }
+                                
+                                component[size++] = n;
+                            }
+                        }
+                    }
+                }
+                
+                if (size < minLength) {
+                    for (int k = 0; k < size; k++) {
+                        bits[(int) (component[k] >>> 6)] &= ~(1L << component[k]);
+                    }
+                    
+                    removed += size;
+                }
+            }
+        }
+        
+        return removed;
+    }
+    
+    private static long Bridge(EdgeMap edges, byte[][] dir, int maxGap, boolean useDir) {
+        long[] bits = edges.getBits();
+        int height = edges.getHeight();
+        int width = edges.getWidth();
+        long[] ends = new long[64];
+        int count = 0;
+        long filled = 0;
+        
+        //Find every line end first, so bridges do not create or consume ends part way through
+        for (int w = 0; w < bits.length; w++) {
+            for (long word = bits[w]; word != 0; word &= word - 1) {
+                long i = ((long) w << 6) + Long.numberOfTrailingZeros(word);
+                int r = (int) (i / width);
+                int c = (int) (i % width);
+                int neighbors = 0;
+                int last = 0;
+                
+                for (int k = 0; k < 8 && neighbors < 2; k++) {
+                    if (Get(bits, height, width, r + DR[k], c + DC[k])) {
+                        neighbors++;
+                        last = k;
+                    }
+                }
+                
+                if (neighbors == 1) {
+                    if (count == ends.length) {
+                        ends = Arrays.copyOf(ends, count * 2);
+                    }
+                    
+                    ends[count++] = (i << 3) | last;
+                }
+            }
+        }
+        
+        for (int e = 0; e < count; e++) {
+            long i = ends[e] >>> 3;
+            int k = (int) (ends[e] & 7);
+            int r = (int) (i / width);
+            int c = (int) (i % width);
+            int dr = -DR[k];    //Straight on, away from the neighbor
+            int dc = -DC[k];
+            
+            if (useDir) {
+                int t = Tangent(dir[r + 1][c + 1]);
+                
+                //Of the two senses along the edge, take the one leading away from the neighbor
+                int dot = DR[t] * DR[k] + DC[t] * DC[k];
+                
+                if (dot == 0) {
+                    continue;
+                }
+                
+                dr = (dot < 0) ? DR[t] : -DR[t];
+                dc = (dot < 0) ? DC[t] : -DC[t];
+            }
+            
+            //A set pixel at step 1 means the gap is already closed, and there is nothing to fill
+            for (int step = 1; step <= maxGap + 1; step++) {
+                if (Get(bits, height, width, r + step * dr, c + step * dc)) {
+                    for (int s = 1; s < step; s++) {
+                        long n = (long) (r + s * dr) * width + (c + s * dc);
+                        long bit = 1L << n;
+                        
+                        if ((bits[(int) (n >>> 6)] & bit) == 0) {
+                            bits[(int) (n >>> 6)] |= bit;
+                            filled++;
+                        }
+                    }
+                    
+                    break;
+                }
+                
+                if (r + step * dr < 0 || r + step * dr >= height || c + step * dc < 0 || c + step * dc >= width) {
+                    break;
+                }
+            }
+        }
+        
+        return filled;
+    }
+    
+    /*
+     * Neighbor index of one sense of the edge direction: at right angles to the neighbors JCanny.Suppression
+     * compares for that gradient direction code.
+     */
+    private static int Tangent(byte code) {
+        switch (code) {
+            case JCanny.DIR_0 :
+                return 2;   //Compared left and right, the edge runs up and down
+            case JCanny.DIR_45 :
+                return 3;   //Compared upper right and lower left, the edge runs upper left to lower right
+            case JCanny.DIR_90 :
+                return 0;   //Compared up and down, the edge runs left and right
+            default :
+                return 1;   //Compared upper left and lower right, the edge runs upper right to lower left
+        }
+    }
+    
+    private static boolean Get(long[] bits, int height, int width, int r, int c) {
+        if (r < 0 || r >= height || c < 0 || c >= width) {
+            return false;
+        }
+        
+        long i = (long) r * width + c;
+        
+        return (bits[(int) (i >>> 6)] & (1L << i)) != 0;
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright 2016 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package jcanny;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * This class writes EdgeMaps straight to an OutputStream, row by row, without building a BufferedImage.
+ * A 24-bit RGB image of a binary map makes PNG deflate 24 times more data than a 1-bit grayscale one.
+ * To write to a FileChannel, wrap it with java.nio.channels.Channels.newOutputStream.
+ * 
+ * PNG      grayscale, 1 bit (edge = 1 = white) or 8 bits (edge = 255) per pixel, configurable deflate level
+ * PBM      binary netpbm (P4), 1 bit per pixel; netpbm counts 1 as black, so edges are black on white
+ * RLE      "JCRLE1", width and height as 32-bit big-endian ints, then for each row the lengths of its
+ *          alternating runs, starting with a non-edge run (possibly 0), as unsigned LEB128 varints
+ * 
+ * @author robert
+ */
+
+public class EdgeWriter {
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+    private static final int IDAT_SIZE = 65536;     //Bytes of compressed data per IDAT chunk
+    
+    /**
+     * Write an edge map as a grayscale PNG.
+     * 
+     * @param edges     EdgeMap, the edges to write
+     * @param out       OutputStream, destination (not closed)
+     * @param bitDepth  int, 1 or 8 bits per pixel
+     * @param level     int, deflate level 0-9 (Deflater.BEST_SPEED is usually the right trade for edge maps)
+     * @throws IOException if the stream cannot be written
+     */
+    public static void WritePNG(EdgeMap edges, OutputStream out, int bitDepth, int level) throws IOException {
+        if (bitDepth != 1 && bitDepth != 8) {
+            throw new IllegalArgumentException("ERROR: PNG bit depth must be 1 or 8!");
+        }
+        
+        int height = edges.getHeight();
+        int width = edges.getWidth();
+        int rowBytes = (bitDepth == 1) ? (width + 7) / 8 : width;
+        byte[] header = new byte[13];
+        byte[] row = new byte[rowBytes + 1];    //Leading filter byte, 0 = none
+        Deflater deflater = new Deflater(level);
+        
+        PutInt(header, 0, width);
+        PutInt(header, 4, height);
+        header[8] = (byte) bitDepth;
+        header[9] = 0;      //Grayscale; compression, filter and interlace stay 0
+        
+        out.write(PNG_SIGNATURE);
+        Chunk(out, "IHDR", header, header.length);
+        
+        try {
+            DeflaterOutputStream idat = new DeflaterOutputStream(new IdatStream(out), deflater, IDAT_SIZE);
+            
+            for (int r = 0; r < height; r++) {
+                if (bitDepth == 1) {
+                    PackRow(edges, r, row, 1);
+                } else {
+                    for (int c = 0; c < width; c++) {
+                        row[c + 1] = edges.get(r, c) ? (byte) 255 : 0;
+                    }
+                }
+                
+                idat.write(row);
+            }
+            
+            idat.close();   //Flushes the last IDAT; IdatStream does not close out
+        } finally {
+            deflater.end();
+        }
+        
+        Chunk(out, "IEND", new byte[0], 0);
+        out.flush();
+    }
+    
+    /**
+     * Write an edge map as a binary PBM (P4) image.
+     * 
+     * @param edges     EdgeMap, the edges to write
+     * @param out       OutputStream, destination (not closed)
+     * @throws IOException if the stream cannot be written
+     */
+    public static void WritePBM(EdgeMap edges, OutputStream out) throws IOException {
+        int height = edges.getHeight();
+        int width = edges.getWidth();
+        byte[] row = new byte[(width + 7) / 8];
+        
+        out.write(("P4\n" + width + " " + height + "\n").getBytes("US-ASCII"));
+        
+        for (int r = 0; r < height; r++) {
+            PackRow(edges, r, row, 0);
+            out.write(row);
+        }
+        
+        out.flush();
+    }
+    
+    /**
+     * Write an edge map as row run lengths (see the class comment for the layout).
+     * 
+     * @param edges     EdgeMap, the edges to write
+     * @param out       OutputStream, destination (not closed)
+     * @throws IOException if the stream cannot be written
+     */
+    public static void WriteRLE(EdgeMap edges, OutputStream out) throws IOException {
+        int height = edges.getHeight();
+        int width = edges.getWidth();
+        DataOutputStream data = new DataOutputStream(out);
+        
+        data.writeBytes("JCRLE1");
+        data.writeInt(width);
+        data.writeInt(height);
+        
+        for (int r = 0; r < height; r++) {
+            boolean edge = false;
+            int run = 0;
+            
+            for (int c = 0; c < width; c++) {
+                if (edges.get(r, c) != edge) {
+                    Varint(data, run);
+                    edge = !edge;
+                    run = 0;
+                }
+                
+                run++;
+            }
+            
+            Varint(data, run);
+        }
+        
+        data.flush();
+    }
+    
+    /*
+     * Pack one row MSB first into dst starting at offset, clearing padding bits.
+     */
+    private static void PackRow(EdgeMap edges, int r, byte[] dst, int offset) {
+        int width = edges.getWidth();
+        int bits = 0;
+        
+        for (int c = 0; c < width; c++) {
+            bits = (bits << 1) | (edges.get(r, c) ? 1 : 0);
+            
+            if ((c & 7) == 7) {
+                dst[offset + (c >> 3)] = (byte) bits;
+                bits = 0;
+            }
+        }
+        
+        if ((width & 7) != 0) {
+            dst[offset + (width >> 3)] = (byte) (bits << (8 - (width & 7)));
+        }
+    }
+    
+    private static void Varint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        
+        out.writeByte(value);
+    }
+    
+    private static void PutInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+    
+    private static void Chunk(OutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] head = new byte[8];
+        byte[] tail = new byte[4];
+        CRC32 crc = new CRC32();
+        
+        PutInt(head, 0, length);
+        
+        for (int i = 0; i < 4; i++) {
+            head[4 + i] = (byte) type.charAt(i);
+        }
+        
+        crc.update(head, 4, 4);
+        crc.update(data, 0, length);
+        PutInt(tail, 0, (int) crc.getValue());
+        out.write(head);
+        out.write(data, 0, length);
+        out.write(tail);
+    }
+    
+    /*
+     * Collects the zlib stream into IDAT chunks of IDAT_SIZE bytes.
+     */
+    private static class IdatStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buf = new byte[IDAT_SIZE];
+        private int count = 0;
+        
+        IdatStream(OutputStream out) {
+            this.out = out;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length) {
+                flush();
+            }
+            
+            buf[count++] = (byte) b;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buf.length) {
+                    flush();
+                }
+                
+                int n = Math.min(len, buf.length - count);
+                
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                Chunk(out, "IDAT", buf, count);
+                count = 0;
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,538 @@
+/**
+ * Copyright 2016 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package jcanny;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * This class runs the same detector as JCanny, but fuses blur, Sobel, magnitude, direction and suppression into
+ * one pass over bands of rows. Each band streams its rows through small ring buffers (2 * rad + 1 grayscale rows,
+ * 3 blurred rows, 3 magnitude rows), so the only full-size planes are the suppressed magnitude it writes, which
+ * the thresholds need the statistics of every band for, and the edge bitset. Hysteresis is one streaming sweep
+ * over the suppressed magnitude that classifies and connects three rows at a time, without a full class map.
+ * Bands run in parallel.
+ * 
+ * The output matches JCanny.CannyEdgeMap exactly. The magnitude statistics are summed per band, in another order
+ * than JCanny's, so Stats checks that the rounded mean and deviation cannot depend on the order; for the rare
+ * image where they could, ExactStats sums them again in JCanny's order.
+ * 
+ * @author robert
+ */
+
+public class FusedCanny {
+    private static final double GAUSSIAN_INTENSITY = 1.5;
+    private static final int BAND_ROWS = 64;    //Rows per band; each band recomputes 2 * rad + 4 halo rows
+    
+    /**
+     * Fused equivalent of JCanny.CannyEdgeMap.
+     * 
+     * @param img               A BufferedImage that is to undergo Canny edge detector.
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @return edges            EdgeMap, one bit per pixel, set for edge pixels. Null if parameters are invalid.
+     */
+    public static EdgeMap CannyEdgeMap(BufferedImage img, int numberDeviations, double fract) {
+        return CannyEdgeMap(img, numberDeviations, fract, GAUSSIAN_INTENSITY, BAND_ROWS);
+    }
+    
+    /**
+     * Fused equivalent of JCanny.CannyEdgeMap, with the blur intensity and band height given by the caller.
+     * 
+     * @param img               A BufferedImage that is to undergo Canny edge detector.
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @param intens            Intensity (sigma) of the Gaussian blur
+     * @param bandRows          Number of output rows per band
+     * @return edges            EdgeMap, one bit per pixel, set for edge pixels. Null if parameters are invalid.
+     */
+    public static EdgeMap CannyEdgeMap(BufferedImage img, int numberDeviations, double fract, double intens,
+            int bandRows) {
+        return CannyEdgeMap(img, numberDeviations, fract, intens, bandRows, false);
+    }
+    
+    /**
+     * Fused equivalent of JCanny.CannyEdgeMap with survivor statistics (see JCanny). With survivorStats the bands
+     * sum only the rows suppression hands them.
+     * 
+     * @param img               A BufferedImage that is to undergo Canny edge detector.
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @param intens            Intensity (sigma) of the Gaussian blur
+     * @param bandRows          Number of output rows per band
+     * @param survivorStats     boolean, true for statistics of the suppressed magnitude's nonzero pixels
+     * @return edges            EdgeMap, one bit per pixel, set for edge pixels. Null if parameters are invalid.
+     */
+    public static EdgeMap CannyEdgeMap(BufferedImage img, int numberDeviations, double fract, double intens,
+            int bandRows, boolean survivorStats) {
+        EdgeMap edges = null;
+        
+        if (img != null && numberDeviations > 0 && fract > 0 && intens > 0 && bandRows > 0) {
+            int[] stats = new int[2];
+            float[][] mag = Suppressed(img, intens, bandRows, stats, survivorStats);
+            
+            edges = Sweep(mag, stats[0] + (numberDeviations * stats[1]), fract);
+        }
+        
+        return edges;
+    }
+    
+    /**
+     * Send this method an image to get its suppressed gradient magnitude, as JCanny.Suppression leaves it,
+     * along with the statistics of the magnitude before suppression.
+     * 
+     * @param img       BufferedImage, the input image
+     * @param intens    double, intensity (sigma) of the Gaussian blur
+     * @param bandRows  int, number of output rows per band
+     * @param stats     int[2], receives the mean and standard deviation of the magnitude
+     * @return mag      float[][], suppressed gradient magnitude
+     */
+    static float[][] Suppressed(BufferedImage img, double intens, int bandRows, int[] stats) {
+        return Suppressed(img, intens, bandRows, stats, false);
+    }
+    
+    /**
+     * Same as Suppressed, with the statistics optionally taken from the nonzero suppressed magnitudes instead.
+     * 
+     * @param img           BufferedImage, the input image
+     * @param intens        double, intensity (sigma) of the Gaussian blur
+     * @param bandRows      int, number of output rows per band
+     * @param stats         int[2], receives the mean and standard deviation
+     * @param survivorStats boolean, true for statistics of the pixels that survive suppression
+     * @return mag          float[][], suppressed gradient magnitude
+     */
+    static float[][] Suppressed(BufferedImage img, double intens, int bandRows, int[] stats, boolean survivorStats) {
+        int rad = JCanny.BlurRadius(intens);
+        int height = img.getHeight() - 2 * rad - 2;
+        int width = img.getWidth() - 2 * rad - 2;
+        
+        if (height < 1 || width < 1) {
+            throw new IllegalArgumentException("ERROR: Image is too small for blur radius!");
+        }
+        
+        //Large intensities are blurred whole by the constant-time blur, which does not stream by rows
+        int[][] blurred = JCanny.Recursive(intens) ? JCanny.Blur(ImageUtils.GSArray(img), intens) : null;
+        RowSource gray = (blurred != null)
+                ? (r, out) -> System.arraycopy(blurred[(int) r], 0, out, 0, out.length)
+                : (r, out) -> ImageUtils.GSRow(img, (int) r, out);
+        int grayWidth = (blurred != null) ? width + 2 : img.getWidth();
+        int blurRad = (blurred != null) ? 0 : rad;
+        float[][] mag = new float[height][width];
+        int bands = (height + bandRows - 1) / bandRows;
+        double[][] sums = new double[bands][];
+        double[][] survivors = new double[bands][3];
+        
+        IntStream.range(0, bands).parallel().forEach(b -> {
+            int first = b * bandRows;
+            int last = Math.min(first + bandRows, height);
+            double[] kept = survivorStats ? survivors[b] : null;
+            
+            //Survivors are summed from the finished rows, so the band need not sum every magnitude
+            sums[b] = Band(gray, grayWidth, blurRad, intens, first, last, survivorStats ? first : last, height,
+                    (r, row) -> {
+                        System.arraycopy(row, 0, mag[(int) r], 0, width);
+                        
+                        //The last two rows and columns are never suppressed, as in JCanny.Suppression
+                        if (kept != null && r < height - 2) {
+                            JCanny.Survivors(row, width - 2, kept);
+                        }
+                    });
+        });
+        
+        if (survivorStats) {
+            double[] total = new double[3];
+            
+            for (double[] kept : survivors) {
+                for (int i = 0; i < 3; i++) {
+                    total[i] += kept[i];
+                }
+            }
+            
+            JCanny.SurvivorStats(total, stats);
+            
+            //Both sum the same values, so only the order can differ; near a boundary, sum as JCanny.Suppression does
+            if (!SurvivorsDecided(total, stats)) {
+                Arrays.fill(total, 0);
+                
+                for (int r = 0; r < height - 2; r++) {
+                    JCanny.Survivors(mag[r], width - 2, total);
+                }
+                
+                JCanny.SurvivorStats(total, stats);
+            }
+        } else if (!Stats(sums, (double) height * width, stats)) {
+            ExactStats(gray, grayWidth, blurRad, intens, height, stats);
+        }
+        
+        return mag;
+    }
+    
+    /**
+     * A source of input rows for a band: grayscale rows, or already blurred rows when the blur radius is 0.
+     */
+    interface RowSource {
+        void Row(long r, int[] out);
+    }
+    
+    /**
+     * A destination for suppressed magnitude rows; the row array is reused after the call returns.
+     */
+    interface RowSink {
+        void Row(long r, float[] row);
+    }
+    
+    /**
+     * Combine band sums, in band order, into the mean and standard deviation of the magnitude. JCanny gets them
+     * from one row-major sum and a variance taken directly about the rounded mean, in float differences; the
+     * results are the same integers unless a value is within the rounding error of those sums of an integer
+     * boundary, which this method reports instead of guessing.
+     * 
+     * @param sums          double[][], per band: sum of magnitudes, and sum and sum of squares of the stored floats
+     * @param pixelTotal    double, number of magnitude pixels
+     * @param stats         int[2], receives the mean and standard deviation
+     * @return decided      boolean, false if JCanny's sums could round to different statistics; use ExactStats
+     */
+    static boolean Stats(double[][] sums, double pixelTotal, int[] stats) {
+        double sum = 0, sumF = 0, sumSqF = 0;
+        
+        for (double[] s : sums) {
+            sum += s[0];
+            sumF += s[1];
+            sumSqF += s[2];
+        }
+        
+        int mean = (int) Math.round(sum / pixelTotal);
+        double var = sumSqF - 2 * mean * sumF + pixelTotal * mean * mean;
+        double terms = sumSqF + 2 * mean * sumF + pixelTotal * mean * mean;    //Bounds every term's size
+        double order = 4 * pixelTotal * Math.ulp(1.0);      //Two sums of nonnegative terms, in any order
+        
+        stats[0] = mean;
+        stats[1] = (int) Math.sqrt(Math.max(var, 0) / pixelTotal);
+        
+        //JCanny's float differences add up to 2^-23 of the variance
+        return Decided(sum, order * sum, var, (order + 0x1p-22) * terms, pixelTotal, stats);
+    }
+    
+    /**
+     * Send this method a row source to get the statistics of its magnitude summed exactly as JCanny sums them:
+     * one row-major pass for the mean, and a second for the variance about it. Neither pass runs in parallel,
+     * so this is only for the images Stats cannot decide.
+     * 
+     * @param gray      RowSource, input rows, grayWidth wide
+     * @param grayWidth int, width of the input rows
+     * @param rad       int, blur radius, 0 if the source is already blurred
+     * @param intens    double, intensity of the blur
+     * @param height    long, number of magnitude rows
+     * @param stats     int[2], receives the mean and standard deviation
+     */
+    static void ExactStats(RowSource gray, int grayWidth, int rad, double intens, long height, int[] stats) {
+        double pixelTotal = (double) height * (grayWidth - 2 * rad - 2);
+        double[] sums = Band(gray, grayWidth, rad, intens, 0, height, height, height, null);
+        int mean = (int) Math.round(sums[0] / pixelTotal);
+        double[] deviation = { 0, 0, 0, mean, 0 };
+        
+        Band(gray, grayWidth, rad, intens, 0, height, height, height, null, deviation);
+        stats[0] = mean;
+        stats[1] = (int) Math.sqrt(deviation[4] / pixelTotal);
+    }
+    
+    /*
+     * Whether survivor sums added in any order give the statistics JCanny.SurvivorStats made of them.
+     */
+    private static boolean SurvivorsDecided(double[] survivors, int[] stats) {
+        double count = Math.max(survivors[0], 1);
+        int mean = stats[0];
+        double var = survivors[2] - 2 * mean * survivors[1] + survivors[0] * mean * mean;
+        double terms = survivors[2] + 2 * mean * survivors[1] + survivors[0] * mean * mean;
+        double order = 4 * count * Math.ulp(1.0);
+        
+        return Decided(survivors[1], order * survivors[1], var, order * terms, count, stats);
+    }
+    
+    /*
+     * Whether a sum and variance anywhere within the given errors round to the same mean and deviation. Rounding,
+     * division and square root are monotonic, so checking both ends of each range is enough.
+     */
+    private static boolean Decided(double sum, double sumError, double var, double varError, double count,
+            int[] stats) {
+        return Math.round((sum - sumError) / count) == stats[0] && Math.round((sum + sumError) / count) == stats[0]
+                && (int) Math.sqrt(Math.max(var - varError, 0) / count) == stats[1]
+                && (int) Math.sqrt(Math.max(var + varError, 0) / count) == stats[1];
+    }
+    
+    /**
+     * Send suppressed magnitude rows [first, last) to the sink and return the magnitude sums of rows [first, counted).
+     * With rad 0 the source rows are used as the blurred rows directly.
+     * 
+     * @param gray      RowSource, input rows, grayWidth wide
+     * @param grayWidth int, width of the input rows
+     * @param rad       int, blur radius, 0 if the source is already blurred
+     * @param intens    double, intensity of the blur
+     * @param first     long, first suppressed row to produce
+     * @param last      long, one past the last suppressed row to produce
+     * @param counted   long, one past the last row whose magnitude goes into the sums
+     * @param height    long, number of suppressed rows in the whole image
+     * @param out       RowSink, receives the rows in order, or null to only compute the sums
+     * @return sums     double[3], sum of magnitudes, and sum and sum of squares of the stored floats
+     */
+    static double[] Band(RowSource gray, int grayWidth, int rad, double intens, long first, long last, long counted,
+            long height, RowSink out) {
+        return Band(gray, grayWidth, rad, intens, first, last, counted, height, out, new double[3]);
+    }
+    
+    /*
+     * Band, adding to the given sums. With five sums, the fifth also gets the squared float differences from the
+     * mean in the fourth, as JCanny.Deviation takes them.
+     */
+    private static double[] Band(RowSource gray, int grayWidth, int rad, double intens, long first, long last,
+            long counted, long height, RowSink out, double[] sums) {
+        int width = grayWidth - 2 * rad - 2;
+        int blurWidth = width + 2;
+        double[] mask = (rad > 0) ? Gaussian.Kernel(rad, intens) : null;
+        double norm = 0.;
+        int[][] grayRing = new int[2 * rad + 1][grayWidth];
+        int[][] blurRing = new int[3][];
+        float[][] magRing = new float[3][width];
+        byte[][] dirRing = new byte[3][width];
+        float[] row = new float[width];
+        double[] blurSum = new double[blurWidth];
+        long nextGray = first;
+        long nextBlur = first;
+        long nextMag = first;
+        
+        if (mask != null) {
+            for (double m : mask) {
+                norm += m;
+            }
+            
+            for (int i = 0; i < 3; i++) {
+                blurRing[i] = new int[blurWidth];
+            }
+        }
+        
+        for (long r = first; r < last; r++) {
+            //Suppression of row r needs magnitude rows r to r + 2, each of which needs blurred rows up to 2 ahead
+            long needMag = Math.min(r + 2, height - 1);
+            
+            while (nextMag <= needMag) {
+                long needBlur = nextMag + 2;
+                
+                while (nextBlur <= needBlur) {
+                    while (nextGray <= nextBlur + 2 * rad) {
+                        gray.Row(nextGray, grayRing[(int) (nextGray % grayRing.length)]);
+                        nextGray++;
+                    }
+                    
+                    if (mask == null) {
+                        blurRing[(int) (nextBlur % 3)] = grayRing[0];
+                        grayRing[0] = new int[grayWidth];
+                    } else {
+                        Gaussian.BlurGSRow(grayRing, (int) (nextBlur % grayRing.length), rad, mask, norm,
+                                blurRing[(int) (nextBlur % 3)], blurSum);
+                    }
+                    
+                    nextBlur++;
+                }
+                
+                int slot = (int) (nextMag % 3);
+                
+                GradientRow(blurRing[slot], blurRing[(int) ((nextMag + 1) % 3)], blurRing[(int) ((nextMag + 2) % 3)],
+                        magRing[slot], dirRing[slot], (nextMag < counted) ? sums : null);
+                nextMag++;
+            }
+            
+            if (out == null) {
+                continue;
+            }
+            
+            System.arraycopy(magRing[(int) (r % 3)], 0, row, 0, width);
+            
+            //Pixel (r + 1, c + 1) being suppressed zeroes (r, c), the same offset JCanny.Suppression writes
+            if (r + 2 < height) {
+                float[] up = magRing[(int) (r % 3)];
+                float[] mid = magRing[(int) ((r + 1) % 3)];
+                float[] down = magRing[(int) ((r + 2) % 3)];
+                byte[] dir = dirRing[(int) ((r + 1) % 3)];
+                
+                for (int c = 1; c < width - 1; c++) {
+                    float magnitude = mid[c];
+                    boolean suppress = false;
+                    
+                    switch (dir[c]) {
+                        case JCanny.DIR_0 :
+                            suppress = magnitude < mid[c - 1] && magnitude < mid[c + 1];
+                            break;
+                        case JCanny.DIR_45 :
+                            suppress = magnitude < up[c + 1] && magnitude < down[c - 1];
+                            break;
+                        case JCanny.DIR_90 :
+                            suppress = magnitude < up[c] && magnitude < down[c];
+                            break;
+                        case JCanny.DIR_135 :
+                            suppress = magnitude < up[c - 1] && magnitude < down[c + 1];
+                            break;
+                    }
+                    
+                    if (suppress) {
+                        row[c - 1] = 0;
+                    }
+                }
+            }
+            
+            out.Row(r, row);
+        }
+        
+        return sums;
+    }
+    
+    /**
+     * A RowSink that classifies suppressed rows as they arrive and emits hysteresis edge rows, keeping only
+     * three rows of classes. Fed suppressed rows first, first + 1, ... it emits edge row e once suppressed
+     * row e + 2 has arrived, for edge rows [first, last).
+     */
+    static class HysteresisStream implements RowSink {
+        private final double tHi;
+        private final double tLo;
+        private final long first;
+        private final long last;
+        private final EdgeRowSink out;
+        private final byte[][] ring;
+        private final boolean[] edges;
+        
+        /**
+         * A destination for hysteresis edge rows; the row array is reused after the call returns.
+         */
+        interface EdgeRowSink {
+            void Row(long r, boolean[] edges);
+        }
+        
+        HysteresisStream(int width, double tHi, double tLo, long first, long last, EdgeRowSink out) {
+            this.tHi = tHi;
+            this.tLo = tLo;
+            this.first = first;
+            this.last = last;
+            this.out = out;
+            this.ring = new byte[3][width];
+            this.edges = new boolean[width - 2];
+        }
+        
+        @Override
+        public void Row(long r, float[] row) {
+            byte[] classes = ring[(int) (r % 3)];
+            
+            for (int c = 0; c < row.length; c++) {
+                double magnitude = row[c];
+                
+                classes[c] = (byte) ((magnitude >= tHi) ? ClassMap.STRONG : (magnitude >= tLo) ? ClassMap.WEAK : ClassMap.NONE);
+            }
+            
+            long e = r - 2;
+            
+            if (e < first || e >= last || edges.length == 0) {
+                return;
+            }
+            
+            byte[] up = ring[(int) (e % 3)];
+            byte[] mid = ring[(int) ((e + 1) % 3)];
+            byte[] down = classes;
+            
+            for (int c = 1; c < mid.length - 1; c++) {
+                boolean edge = mid[c] == ClassMap.STRONG;
+                
+                if (mid[c] == ClassMap.WEAK) {
+                    for (int nc = c - 1; nc <= c + 1 && !edge; nc++) {
+                        edge = up[nc] == ClassMap.STRONG || mid[nc] == ClassMap.STRONG || down[nc] == ClassMap.STRONG;
+                    }
+                }
+                
+                edges[c - 1] = edge;
+            }
+            
+            out.Row(e, edges);
+        }
+    }
+    
+    /**
+     * Classify and connect the suppressed magnitude in one pass of three-row windows. Gives the same edges as
+     * JCanny.Hysteresis with the same high threshold, without building a class map.
+     * 
+     * @param mag       float[][], suppressed gradient magnitude
+     * @param tHi       double, high threshold
+     * @param tFract    double, low threshold is this fraction of the high threshold
+     * @return edges    EdgeMap, one pixel smaller than mag on every side
+     */
+    static EdgeMap Sweep(float[][] mag, double tHi, double tFract) {
+        int height = mag.length;
+        int width = mag[0].length;
+        EdgeMap edges = new EdgeMap(Math.max(height - 2, 0), Math.max(width - 2, 0));
+        
+        if (height < 3 || width < 3) {
+            return edges;
+        }
+        
+        long[] bits = edges.getBits();
+        
+        //Rows go straight into the words, without a branch per pixel
+        HysteresisStream hysteresis = new HysteresisStream(width, tHi, tHi * tFract, 0, height - 2, (e, row) -> {
+            long i = e * row.length;
+            
+            for (int c = 0; c < row.length; c++, i++) {
+                bits[(int) (i >>> 6)] |= (row[c] ? 1L : 0L) << i;
+            }
+        });
+        
+        for (int r = 0; r < height; r++) {
+            hysteresis.Row(r, mag[r]);
+        }
+        
+        return edges;
+    }
+    
+    /*
+     * Sobel, magnitude and direction of one row from the three blurred rows around it.
+     */
+    private static void GradientRow(int[] top, int[] mid, int[] bot, float[] mag, byte[] dir, double[] sums) {
+        int width = mag.length;
+        
+        for (int c = 0; c < width; c++) {
+            int gx = (top[c + 2] - top[c]) + 2 * (mid[c + 2] - mid[c]) + (bot[c + 2] - bot[c]);
+            int gy = (bot[c] + 2 * bot[c + 1] + bot[c + 2]) - (top[c] + 2 * top[c + 1] + top[c + 2]);
+            double magnitude = Math.sqrt(gx * gx + gy * gy);
+            
+            mag[c] = (float) magnitude;
+            dir[c] = JCanny.DirectionCode(gx, gy);
+            
+            if (sums != null) {
+                sums[0] += magnitude;
+                sums[1] += mag[c];
+                sums[2] += (double) mag[c] * mag[c];
+            }
+        }
+        
+        if (sums != null && sums.length > 3) {
+            int mean = (int) sums[3];
+            
+            for (int c = 0; c < width; c++) {
+                double diff = mag[c] - mean;
+                
+                sums[4] += (diff * diff);
+            }
+        }
+    }
+}
@@ -17,11 +17,38 @@
  */
 package jcanny;
 
+import java.util.Arrays;
+
 /**
  * This class contains methods for masking image arrays with Gaussian masks.
  * Instead of convolving each pixel pixel with a 2D Gaussian kernel, it convolves
  * the image horizontally and vertically with a 1D Gaussian kernel.
  * 
+ * Note that BlurGS returns only its vertical pass: the horizontal pass writes the same output array and is then
+ * overwritten. The detector has always blurred this way, so its thresholds and results assume a vertical blur.
+ * 
+ * For large intensities the kernel gets long (2 * rad + 1 taps), so there are also blurs whose cost per pixel
+ * does not depend on the intensity, either a 4th order Deriche recursive (IIR) Gaussian or three successive box
+ * filters:
+ *   BlurGSVertical                    what BlurGS computes: columns only, the same rad crop on every side. This is
+ *                                     what the detector switches to above its recursive intensity.
+ *   BlurGSRecursive, BlurGSBox        a true separable 2D blur, horizontally and then vertically, with the same
+ *                                     crop. Edges are smoothed along rows too, so detection results change a
+ *                                     lot (edge counts by up to a factor of 5 either way on the Regression
+ *                                     patterns); the detector uses it only when asked to.
+ * The 2D blurs hold one float plane between the passes (4 bytes per pixel); the vertical pass works through
+ * strips of STRIP columns, so no transposed copy of the image is made.
+ * 
+ * Measured against BlurGS at the same radius and intensity on the Regression patterns, intens 3.5-8:
+ *   BlurGSVertical recursive: max difference 1 gray level (rounding), mean difference below 0.02, except 0.07
+ *                             on hard steps in a 64x48 image
+ *   BlurGSVertical box (3 passes): max difference 4 gray levels, mean difference below 1.4
+ * The 2D blurs, against a separable sampled-kernel Gaussian of the same radius, rounded: max 1 and mean below
+ * 0.03 (recursive), max 5 and mean below 1.8 (box). Regression holds all four to max 1 / mean 0.08 and max 6 /
+ * mean 2. Detection just below the default switch and with the recursive blur forced at the same intensity
+ * differ in at most 0.4% of the edge pixels. The constant-time blurs replicate the edge pixels beyond the image
+ * where the kernel is cropped, so with a radius smaller than 4 * intens the outermost output pixels differ more.
+ * 
  * @author robert
  */
 
@@ -34,6 +61,7 @@ TODO
 public class Gaussian {
     //This seems like a very costly operation, only doing this once.
     private static final double SQRT2PI = Math.sqrt(2 * Math.PI);
+    private static final int STRIP = 64;    //Columns per vertical strip of the constant-time blurs
     
     /**
      * Send this method an int[][][] RGB array, an int radius, and a double intensity to blur the
@@ -162,4 +190,387 @@ public class Gaussian {
         
         return outGS;
     }
+    
+    /**
+     * Send this method a radius and intensity to get the 1D Gaussian kernel BlurGS uses (not normalized).
+     * 
+     * @param rad       int, the radius of the Gaussian filter (filter width = 2 * r + 1)
+     * @param intens    double, the intensity of the Gaussian blur
+     * @return mask     double[], kernel weights
+     */
+    static double[] Kernel(int rad, double intens) {
+        double intensSquared2 = 2 * intens * intens;
+        double invIntensSqrPi = 1 / (SQRT2PI * intens);
+        double[] mask = new double[2 * rad + 1];
+        
+        for (int x = -rad; x < rad + 1; x++) {
+            double exp = Math.exp(-((x * x) / intensSquared2));
+            
+            mask[x + rad] = invIntensSqrPi * exp;
+        }
+        
+        return mask;
+    }
+    
+    /**
+     * Compute one output row of BlurGS from the 2 * rad + 1 input rows it covers, for callers that stream rows
+     * through a ring buffer instead of holding the whole image. BlurGS's result is its vertical pass (the
+     * horizontal pass is overwritten), and this reproduces it exactly.
+     * 
+     * @param ring      int[][], ring of input rows
+     * @param first     int, ring slot of the topmost input row; the others follow modulo ring.length
+     * @param rad       int, the radius of the Gaussian filter
+     * @param mask      double[], kernel from Kernel(rad, intens)
+     * @param norm      double, sum of the kernel weights in index order
+     * @param out       int[], receives width - 2 * rad blurred values
+     * @param sum       double[], scratch of out.length
+     */
+    static void BlurGSRow(int[][] ring, int first, int rad, double[] mask, double norm, int[] out, double[] sum) {
+        int width = out.length;
+        
+        Arrays.fill(sum, 0, width, 0.);
+        
+        //One tap across the whole row at a time; each pixel still adds its taps in kernel order, as BlurGS does
+        for (int mr = 0; mr < 2 * rad + 1; mr++) {
+            int[] row = ring[(first + mr) % ring.length];
+            double weight = mask[mr];
+            
+            for (int c = 0; c < width; c++) {
+                sum[c] += (weight * row[c + rad]);
+            }
+        }
+        
+        //Normalize channel after blur
+        for (int c = 0; c < width; c++) {
+            out[c] = (int) Math.round(sum[c] / norm);
+        }
+    }
+    
+    /**
+     * Send this method an int[][] grayscale array, an int radius, and a double intensity to blur the image with a
+     * 4th order recursive (Deriche) approximation of a Gaussian filter. The cost per pixel is the same for every
+     * intensity; the radius is only used to crop the output to the same size as BlurGS.
+     * 
+     * @param raw       int[][], an array of grayscale values to be blurred
+     * @param rad       int, border cropped from each side of the output
+     * @param intens    double, the intensity (sigma) of the Gaussian blur, at least 0.5
+     * @return outGS    int[][], an array of grayscale values from blurring input image
+     */
+    public static int[][] BlurGSRecursive(int[][] raw, int rad, double intens) {
+        if (intens < 0.5) {
+            throw new IllegalArgumentException("ERROR: Recursive Gaussian needs intensity >= 0.5!");
+        }
+        
+        return Blur(raw, rad, intens, false);
+    }
+    
+    /**
+     * Send this method an int[][] grayscale array, an int radius, and a double intensity to blur the image with
+     * three box filters whose combined variance matches the Gaussian. Each box is a running sum, so the cost per
+     * pixel is the same for every intensity. Cheaper but less accurate than BlurGSRecursive.
+     * 
+     * @param raw       int[][], an array of grayscale values to be blurred
+     * @param rad       int, border cropped from each side of the output
+     * @param intens    double, the intensity (sigma) of the Gaussian blur
+     * @return outGS    int[][], an array of grayscale values from blurring input image
+     */
+    public static int[][] BlurGSBox(int[][] raw, int rad, double intens) {
+        return Blur(raw, rad, intens, true);
+    }
+    
+    /**
+     * Send this method an int[][] grayscale array, an int radius, and a double intensity to get what BlurGS
+     * returns, its vertical blur of the columns the crop keeps, from the recursive Gaussian or the box filters.
+     * The cost per pixel is the same for every intensity.
+     * 
+     * @param raw       int[][], an array of grayscale values to be blurred
+     * @param rad       int, border cropped from each side of the output
+     * @param intens    double, the intensity (sigma) of the Gaussian blur, at least 0.5
+     * @param box       boolean, true for the box approximation, false for the recursive Gaussian
+     * @return outGS    int[][], an array of grayscale values from blurring input image
+     */
+    public static int[][] BlurGSVertical(int[][] raw, int rad, double intens, boolean box) {
+        if (intens < 0.5) {
+            throw new IllegalArgumentException("ERROR: Recursive Gaussian needs intensity >= 0.5!");
+        }
+        
+        int[][] outGS = new int[raw.length - 2 * rad][raw[0].length - 2 * rad];
+        
+        BlurColumns(raw, rad, intens, box, outGS, 0, outGS[0].length);
+        
+        return outGS;
+    }
+    
+    /**
+     * Horizontal pass of BlurGSRecursive or BlurGSBox over rows [first, last), for callers that split the blur
+     * into pieces. Each row is filtered in double precision and the columns the crop leaves are kept as floats.
+     * 
+     * @param raw       int[][], an array of grayscale values to be blurred
+     * @param rad       int, border cropped from each side of the output
+     * @param intens    double, the intensity (sigma) of the Gaussian blur
+     * @param box       boolean, true for the box approximation, false for the recursive Gaussian
+     * @param plane     float[][], height rows of width - 2 * rad, receives the filtered rows
+     * @param first     int, first row to filter
+     * @param last      int, one past the last row to filter
+     */
+    static void BlurRows(int[][] raw, int rad, double intens, boolean box, float[][] plane, int first, int last) {
+        LineFilter filter = Filter(intens, box, raw[0].length);
+        double[] line = new double[raw[0].length];
+        
+        for (int r = first; r < last; r++) {
+            for (int c = 0; c < line.length; c++) {
+                line[c] = raw[r][c];
+            }
+            
+            filter.Filter(line);
+            
+            for (int c = 0; c < plane[r].length; c++) {
+                plane[r][c] = (float) line[c + rad];
+            }
+        }
+    }
+    
+    /**
+     * Vertical pass over columns [first, last) of a plane BlurRows has filled, a strip of STRIP columns at a
+     * time so only the strip is ever held column-major. The result is rounded into the output, cropping rad rows
+     * from the top and bottom like BlurGS does.
+     * 
+     * @param plane     float[][], the horizontally filtered rows
+     * @param rad       int, border cropped from the top and bottom of the output
+     * @param intens    double, the intensity (sigma) of the Gaussian blur
+     * @param box       boolean, true for the box approximation, false for the recursive Gaussian
+     * @param outGS     int[][], height - 2 * rad rows of the plane's width, receives the blurred columns
+     * @param first     int, first column to filter
+     * @param last      int, one past the last column to filter
+     */
+    static void BlurColumns(float[][] plane, int rad, double intens, boolean box, int[][] outGS, int first, int last) {
+        int height = plane.length;
+        LineFilter filter = Filter(intens, box, height);
+        double[][] strip = new double[Math.min(STRIP, last - first)][height];
+        
+        for (int left = first; left < last; left += STRIP) {
+            int cols = Math.min(STRIP, last - left);
+            
+            for (int r = 0; r < height; r++) {
+                float[] row = plane[r];
+                
+                for (int k = 0; k < cols; k++) {
+                    strip[k][r] = row[left + k];
+                }
+            }
+            
+            FilterStrip(strip, cols, filter, rad, outGS, left);
+        }
+    }
+    
+    /**
+     * The vertical-only blur of BlurGSVertical over output columns [first, last), read straight from the
+     * grayscale rows (output column c is input column c + rad), a strip of STRIP columns at a time.
+     * 
+     * @param raw       int[][], an array of grayscale values to be blurred
+     * @param rad       int, border cropped from each side of the output
+     * @param intens    double, the intensity (sigma) of the Gaussian blur
+     * @param box       boolean, true for the box approximation, false for the recursive Gaussian
+     * @param outGS     int[][], height - 2 * rad rows of width - 2 * rad, receives the blurred columns
+     * @param first     int, first output column to filter
+     * @param last      int, one past the last output column to filter
+     */
+    static void BlurColumns(int[][] raw, int rad, double intens, boolean box, int[][] outGS, int first, int last) {
+        int height = raw.length;
+        LineFilter filter = Filter(intens, box, height);
+        double[][] strip = new double[Math.min(STRIP, last - first)][height];
+        
+        for (int left = first; left < last; left += STRIP) {
+            int cols = Math.min(STRIP, last - left);
+            
+            for (int r = 0; r < height; r++) {
+                int[] row = raw[r];
+                
+                for (int k = 0; k < cols; k++) {
+                    strip[k][r] = row[rad + left + k];
+                }
+            }
+            
+            FilterStrip(strip, cols, filter, rad, outGS, left);
+        }
+    }
+    
+    /*
+     * Filter the first cols columns of a strip and round them into the output, cropping rad rows top and bottom.
+     */
+    private static void FilterStrip(double[][] strip, int cols, LineFilter filter, int rad, int[][] outGS, int left) {
+        int height = strip[0].length;
+        
+        for (int k = 0; k < cols; k++) {
+            filter.Filter(strip[k]);
+        }
+        
+        for (int r = rad; r < height - rad; r++) {
+            int[] out = outGS[r - rad];
+            
+            for (int k = 0; k < cols; k++) {
+                out[left + k] = (int) Math.round(strip[k][r]);
+            }
+        }
+    }
+    
+    /*
+     * Both passes over the whole image.
+     */
+    private static int[][] Blur(int[][] raw, int rad, double intens, boolean box) {
+        int height = raw.length;
+        int width = raw[0].length - 2 * rad;
+        float[][] plane = new float[height][width];
+        int[][] outGS = new int[height - 2 * rad][width];
+        
+        BlurRows(raw, rad, intens, box, plane, 0, height);
+        BlurColumns(plane, rad, intens, box, outGS, 0, width);
+        
+        return outGS;
+    }
+    
+    /*
+     * A 1D filter applied in place to a row or column.
+     */
+    private interface LineFilter {
+        void Filter(double[] line);
+    }
+    
+    /*
+     * The 1D filter of either blur, with scratch space for lines up to length long (not thread safe).
+     */
+    private static LineFilter Filter(double intens, boolean box, int length) {
+        double[] scratch = new double[length];
+        
+        if (box) {
+            int passes = 3;
+            
+            //Box widths (Kovesi): m passes of the lower odd width, the rest of the next odd width
+            int lower = (int) Math.floor(Math.sqrt(12 * intens * intens / passes + 1));
+            
+            if (lower % 2 == 0) {
+                lower--;
+            }
+            
+            long m = Math.round((12 * intens * intens - passes * lower * lower - 4 * passes * lower - 3 * passes)
+                    / (-4. * lower - 4));
+            int[] boxRad = new int[passes];
+            
+            for (int i = 0; i < passes; i++) {
+                boxRad[i] = ((i < m) ? lower : lower + 2) / 2;
+            }
+            
+            return line -> {
+                for (int i = 0; i < passes; i++) {
+                    BoxRow(line, boxRad[i], scratch);
+                }
+            };
+        }
+        
+        //Causal numerator, anti-causal numerator and shared denominator, from Deriche's fit of the Gaussian
+        double a0 = 1.680, a1 = 3.735, w0 = 0.6318 / intens, b0 = 1.783 / intens;
+        double c0 = -0.6803, c1 = -0.2598, w1 = 1.997 / intens, b1 = 1.723 / intens;
+        double[] n = new double[4];
+        double[] m = new double[4];
+        double[] d = new double[4];
+        
+        n[0] = a0 + c0;
+        n[1] = Math.exp(-b1) * (c1 * Math.sin(w1) - (c0 + 2 * a0) * Math.cos(w1))
+                + Math.exp(-b0) * (a1 * Math.sin(w0) - (2 * c0 + a0) * Math.cos(w0));
+        n[2] = 2 * Math.exp(-b0 - b1) * ((a0 + c0) * Math.cos(w1) * Math.cos(w0) - a1 * Math.cos(w1) * Math.sin(w0)
+                - c1 * Math.cos(w0) * Math.sin(w1)) + c0 * Math.exp(-2 * b0) + a0 * Math.exp(-2 * b1);
+        n[3] = Math.exp(-b1 - 2 * b0) * (c1 * Math.sin(w1) - c0 * Math.cos(w1))
+                + Math.exp(-b0 - 2 * b1) * (a1 * Math.sin(w0) - a0 * Math.cos(w0));
+        d[0] = -2 * Math.exp(-b1) * Math.cos(w1) - 2 * Math.exp(-b0) * Math.cos(w0);
+        d[1] = 4 * Math.cos(w1) * Math.cos(w0) * Math.exp(-b0 - b1) + Math.exp(-2 * b1) + Math.exp(-2 * b0);
+        d[2] = -2 * Math.cos(w0) * Math.exp(-b0 - 2 * b1) - 2 * Math.cos(w1) * Math.exp(-b1 - 2 * b0);
+        d[3] = Math.exp(-2 * (b0 + b1));
+        
+        for (int i = 0; i < 3; i++) {
+            m[i] = n[i + 1] - d[i] * n[0];
+        }
+        
+        m[3] = -d[3] * n[0];
+        
+        //Normalize so the filter has unit gain
+        double gain = (n[0] + n[1] + n[2] + n[3] + m[0] + m[1] + m[2] + m[3]) / (1 + d[0] + d[1] + d[2] + d[3]);
+        
+        for (int i = 0; i < 4; i++) {
+            n[i] /= gain;
+            m[i] /= gain;
+        }
+        
+        return line -> RecurseRow(line, n, m, d, scratch);
+    }
+    
+    /*
+     * Causal plus anti-causal 4th order recursion over one row, edges replicated.
+     */
+    private static void RecurseRow(double[] row, double[] n, double[] m, double[] d, double[] causal) {
+        int len = row.length;
+        double dSum = 1 + d[0] + d[1] + d[2] + d[3];
+        
+        //Start both passes in the steady state of a constant signal equal to the edge pixel
+        double x1 = row[0], x2 = x1, x3 = x1;
+        double y1 = x1 * (n[0] + n[1] + n[2] + n[3]) / dSum, y2 = y1, y3 = y1, y4 = y1;
+        
+        for (int i = 0; i < len; i++) {
+            double x0 = row[i];
+            double y0 = n[0] * x0 + n[1] * x1 + n[2] * x2 + n[3] * x3 - d[0] * y1 - d[1] * y2 - d[2] * y3 - d[3] * y4;
+            
+            causal[i] = y0;
+            x3 = x2;
+            x2 = x1;
+            x1 = x0;
+            y4 = y3;
+            y3 = y2;
+            y2 = y1;
+            y1 = y0;
+        }
+        
+        x1 = row[len - 1];
+        x2 = x1;
+        x3 = x1;
+        double x4 = x1;
+        y1 = x1 * (m[0] + m[1] + m[2] + m[3]) / dSum;
+        y2 = y1;
+        y3 = y1;
+        y4 = y1;
+        
+        for (int i = len - 1; i >= 0; i--) {
+            double x0 = row[i];
+            double y0 = m[0] * x1 + m[1] * x2 + m[2] * x3 + m[3] * x4 - d[0] * y1 - d[1] * y2 - d[2] * y3 - d[3] * y4;
+            
+            row[i] = causal[i] + y0;
+            x4 = x3;
+            x3 = x2;
+            x2 = x1;
+            x1 = x0;
+            y4 = y3;
+            y3 = y2;
+            y2 = y1;
+            y1 = y0;
+        }
+    }
+    
+    /*
+     * One box filter of width 2 * boxRad + 1 over one row as a running sum, edges replicated.
+     */
+    private static void BoxRow(double[] row, int boxRad, double[] src) {
+        int n = row.length;
+        int last = n - 1;
+        double inv = 1. / (2 * boxRad + 1);
+        double sum = 0;
+        
+        System.arraycopy(row, 0, src, 0, n);
+        
+        for (int i = -boxRad; i <= boxRad; i++) {
+            sum += src[Math.min(Math.max(i, 0), last)];
+        }
+        
+        for (int i = 0; i < n; i++) {
+            row[i] = sum * inv;
+            sum += src[Math.min(i + boxRad + 1, last)] - src[Math.max(i - boxRad, 0)];
+        }
+    }
 }
@@ -103,6 +103,31 @@ public class ImageUtils {
         return gs;
     }
     
+    /**
+     * Send this method a BufferedImage and a row index to get that row of GSArray without building the whole array.
+     * 
+     * @param img   BufferedImage, the input image from which to extract grayscale
+     * @param row   int, the row to extract
+     * @param out   int[], receives img.getWidth() grayscale values
+     */
+    public static void GSRow(BufferedImage img, int row, int[] out) {
+        int width = img.getWidth();
+        int type = img.getType();
+        
+        //Packed RGB rows are what getRGB would return, without its per-pixel color model calls
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+            img.getRaster().getDataElements(0, row, width, 1, out);
+        } else {
+            img.getRGB(0, row, width, 1, out, 0, width);
+        }
+        
+        for (int j = 0; j < width; j++) {
+            int bits = out[j];
+            long avg = Math.round((((bits >> 16) & 0xff) + ((bits >> 8) & 0xff) + (bits & 0xff)) / 3.0);
+            out[j] = (int) avg;
+        }
+    }
+    
     /**
      * Send this method an array of grayscale pixels (int) to get a BufferedImage
      * 
@@ -127,6 +152,30 @@ public class ImageUtils {
         return img;
     }
     
+    /**
+     * Send this method an EdgeMap to get a BufferedImage, white for edge pixels and black otherwise.
+     * 
+     * @param edges EdgeMap of detected edges.
+     * @return img  BufferedImage built from edge map
+     */
+    public static BufferedImage GSImg(EdgeMap edges) {
+        BufferedImage img = null;
+        int height = edges.getHeight();
+        int width = edges.getWidth();
+        
+        if (height > 0 && width > 0) {
+            img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            
+            for (int i = 0; i < height; i++) {
+                for (int j = 0; j < width; j++) {
+                    img.setRGB(j, i, edges.get(i, j) ? 0xffffff : 0);
+                }
+            }
+        }
+        
+        return img;
+    }
+    
     /*
      * Accepts BufferedImage, returns double[][][] array of HSV values
      */
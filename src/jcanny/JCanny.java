@@ -22,17 +22,24 @@ import java.awt.image.BufferedImage;
 public class JCanny {
     private static final int GAUSSIAN_RADIUS = 7;
     private static final double GAUSSIAN_INTENSITY = 1.5;
+    private static final double RECURSIVE_INTENSITY = 3.0;
     
-    private static int stDev;       //Standard deviation in magnitude of image's pixels
-    private static int mean;        //Mean of magnitude in image's pixels
-    private static int numDev;      //Number of standard deviations above mean for high threshold
-    private static double tHi;      //Hysteresis high threshold; Definitely edge pixels, do not examine
-    private static double tLo;      //Hysteresis low threshold; possible edge pixel, examine further.
-    private static double tFract;   //Low threshold is this fraction of high threshold
-    private static int[][] dir;     //Gradient direction mask. Equals Math.atan2(gy/gx)
-    private static int[][] gx;      //Mask resulting from horizontal 3x3 Sobel mask
-    private static int[][] gy;      //Mask resulting from vertical 3x3 Sobel mask
-    private static double[][] mag;  //Direction mask. Equals Math.sqrt(gx^2 * gy^2)
+    private static volatile double recursiveIntensity = RECURSIVE_INTENSITY;  //Above this, blur in constant time per pixel
+    private static volatile boolean boxBlur = false;                           //Use box approximation instead of IIR
+    private static volatile boolean separableBlur = false;                     //Blur rows too, unlike BlurGS
+    
+    //BlurMode flags
+    static final int BLUR_RECURSIVE = 1;    //Constant-time recursive Gaussian instead of the kernel
+    static final int BLUR_BOX = 2;          //Constant-time box approximation instead of the kernel
+    static final int BLUR_SEPARABLE = 4;    //Constant-time blur of rows and columns, not just columns
+    
+    //Gradient direction codes, one byte per pixel instead of the angle in degrees
+    static final byte DIR_0 = 0;    //Check left and right neighbors
+    static final byte DIR_45 = 1;   //Check diagonal (upper right and lower left) neighbors
+    static final byte DIR_90 = 2;   //Check top and bottom neighbors
+    static final byte DIR_135 = 3;  //Check diagonal (upper left and lower right) neighbors
+    private static final double TAN_22_5 = Math.sqrt(2) - 1;
+    private static final double TAN_67_5 = Math.sqrt(2) + 1;
     
     /**
      * This function accepts a single-channel (grayscale, red, blue, Y, etc) image and returns an image with detected edges.
@@ -48,51 +55,288 @@ public class JCanny {
      * @return edges            A binary image of the edges in the input image.
      */
     public static BufferedImage CannyEdges(BufferedImage img, int numberDeviations, double fract) {
-        int[][] raw = null;
-        int[][] blurred = null;
-        BufferedImage edges = null;
-        numDev = numberDeviations;
-        tFract = fract;
+        EdgeMap edges = CannyEdgeMap(img, numberDeviations, fract);
+        
+        return (edges != null) ? ImageUtils.GSImg(edges) : null;
+    }
+    
+    /**
+     * Same as CannyEdges, but returns the edges as a bit-packed EdgeMap instead of a 24-bit image.
+     * 
+     * @param img               A BufferedImage that is to undergo Canny edge detector.
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @return edges            EdgeMap, one bit per pixel, set for edge pixels. Null if parameters are invalid.
+     */
+    public static EdgeMap CannyEdgeMap(BufferedImage img, int numberDeviations, double fract) {
+        return CannyEdgeMap(img, numberDeviations, fract, GAUSSIAN_INTENSITY);
+    }
+    
+    /**
+     * Same as CannyEdges, with the intensity (sigma) of the Gaussian blur given by the caller. Intensities above
+     * the recursive threshold (see SetRecursiveIntensity) are blurred in constant time per pixel.
+     * 
+     * @param img               A BufferedImage that is to undergo Canny edge detector.
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @param intens            Intensity (sigma) of the Gaussian blur
+     * @return edges            A binary image of the edges in the input image.
+     */
+    public static BufferedImage CannyEdges(BufferedImage img, int numberDeviations, double fract, double intens) {
+        EdgeMap edges = CannyEdgeMap(img, numberDeviations, fract, intens);
+        
+        return (edges != null) ? ImageUtils.GSImg(edges) : null;
+    }
+    
+    /**
+     * Same as CannyEdgeMap, with the intensity (sigma) of the Gaussian blur given by the caller. The blur is
+     * applied to columns only, as Gaussian.BlurGS does; above the recursive intensity (see SetRecursiveIntensity)
+     * it is done in constant time per pixel, within a gray level of the kernel unless the separable 2D blur has
+     * been selected.
+     * 
+     * @param img               A BufferedImage that is to undergo Canny edge detector.
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @param intens            Intensity (sigma) of the Gaussian blur
+     * @return edges            EdgeMap, one bit per pixel, set for edge pixels. Null if parameters are invalid.
+     */
+    public static EdgeMap CannyEdgeMap(BufferedImage img, int numberDeviations, double fract, double intens) {
+        return (img != null) ? CannyEdgeMap(ImageUtils.GSArray(img), numberDeviations, fract, intens) : null;
+    }
+    
+    /**
+     * Same as CannyEdgeMap, for a grayscale array that is already in memory (for example raw camera buffers).
+     * 
+     * @param raw               int[][], grayscale pixel values 0-255
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @param intens            Intensity (sigma) of the Gaussian blur
+     * @return edges            EdgeMap, one bit per pixel, set for edge pixels. Null if parameters are invalid.
+     */
+    public static EdgeMap CannyEdgeMap(int[][] raw, int numberDeviations, double fract, double intens) {
+        return CannyEdgeMap(raw, numberDeviations, fract, intens, false);
+    }
+    
+    /**
+     * Same as CannyEdgeMap for a grayscale array, optionally taking the threshold statistics from the pixels that
+     * survive suppression instead of from every pixel. Flat regions then no longer pull the mean down, so the
+     * thresholds depend far less on how much of the image is background; expect fewer, stronger edges for the same
+     * numberDeviations. The statistics are summed during suppression, which saves both passes over every pixel,
+     * and the edges come from one streaming sweep that classifies and connects three rows at a time.
+     * 
+     * @param raw               int[][], grayscale pixel values 0-255
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @param intens            Intensity (sigma) of the Gaussian blur
+     * @param survivorStats     boolean, true for statistics of the suppressed magnitude's nonzero pixels
+     * @return edges            EdgeMap, one bit per pixel, set for edge pixels. Null if parameters are invalid.
+     */
+    public static EdgeMap CannyEdgeMap(int[][] raw, int numberDeviations, double fract, double intens,
+            boolean survivorStats) {
+        EdgeMap edges = null;
         
         //More specific bounds checking later
-        if (img != null && numberDeviations > 0 && fract > 0) {
-            raw = ImageUtils.GSArray(img);
-            blurred = Gaussian.BlurGS(raw, GAUSSIAN_RADIUS, GAUSSIAN_INTENSITY);
-            gx = Sobel.Horizontal(blurred);  //Convolved with 3x3 horizontal Sobel mask
-            gy = Sobel.Vertical(blurred);    //Convolved with 3x3 vertical Sobel mask
-
-            Magnitude();    //Find the gradient magnitude at each pixel
-            Direction();    //Find the gradient direction at each pixel
-            Suppression();  //Using the direction and magnitude images, identify candidate points
-
-            edges = ImageUtils.GSImg(Hysteresis());
+        if (raw != null && numberDeviations > 0 && fract > 0 && intens > 0) {
+            int[] stats = new int[2];
+            int[][] blurred = Blur(raw, intens);
+            int[] allStats = survivorStats ? null : stats;  //Survivor statistics come from suppression instead
+            byte[][] dir = new byte[blurred.length - 2][blurred[0].length - 2];
+            float[][] mag = Gradient(blurred, dir, allStats);   //Magnitude and direction, releasing blurred
+            
+            if (survivorStats) {
+                double[] sums = new double[3];
+                
+                Suppression(mag, dir, sums);
+                SurvivorStats(sums, stats);
+                edges = FusedCanny.Sweep(mag, stats[0] + (numberDeviations * stats[1]), fract);
+            } else {
+                Suppression(mag, dir);  //Using the direction and magnitude images, identify candidate points
+                edges = Hysteresis(mag, stats[0], stats[1], numberDeviations, fract);
+            }
         }
         
         return edges;
     }
     
+    /**
+     * Set the blur intensity above which the detector switches from the Gaussian kernel, whose cost grows with
+     * the intensity, to a blur whose cost per pixel is constant. Like the kernel blur (Gaussian.BlurGS), the
+     * constant-time blur is applied to columns only, so crossing the threshold changes the blurred image by
+     * rounding (recursive) or a few gray levels (box), not the character of the result. See Gaussian for the
+     * accuracy of each.
+     * 
+     * @param intens    double, intensity (sigma) threshold, default 3.0
+     * @param box       boolean, true for the box approximation, false for the recursive Gaussian
+     */
+    public static void SetRecursiveIntensity(double intens, boolean box) {
+        SetRecursiveIntensity(intens, box, false);
+    }
+    
+    /**
+     * Same as SetRecursiveIntensity, optionally blurring above the threshold with a true separable 2D Gaussian
+     * (rows and columns) instead of the columns-only blur the kernel path computes. This is a different
+     * detector, not a faster one: on the Regression patterns at the same intensity, edge counts change by up to
+     * a factor of 5 either way.
+     * 
+     * @param intens    double, intensity (sigma) threshold, default 3.0
+     * @param box       boolean, true for the box approximation, false for the recursive Gaussian
+     * @param separable boolean, true to blur rows as well as columns above the threshold
+     */
+    public static void SetRecursiveIntensity(double intens, boolean box, boolean separable) {
+        recursiveIntensity = intens;
+        boxBlur = box;
+        separableBlur = separable;
+    }
+    
+    /**
+     * Send this method a grayscale array and a blur intensity to get the blurred array the detector works on.
+     * The border cropped from each side is GAUSSIAN_RADIUS, or 4 * intens if that is larger.
+     * 
+     * @param raw       int[][], grayscale pixel values
+     * @param intens    double, intensity (sigma) of the Gaussian blur
+     * @return blurred  int[][], blurred and cropped grayscale values
+     */
+    static int[][] Blur(int[][] raw, double intens) {
+        int rad = BlurRadius(intens);
+        int mode = BlurMode(intens);
+        boolean box = (mode & BLUR_BOX) != 0;
+        
+        if (mode == 0) {
+            return Gaussian.BlurGS(raw, rad, intens);
+        } else if ((mode & BLUR_SEPARABLE) != 0) {
+            return box ? Gaussian.BlurGSBox(raw, rad, intens) : Gaussian.BlurGSRecursive(raw, rad, intens);
+        }
+        
+        return Gaussian.BlurGSVertical(raw, rad, intens, box);
+    }
+    
+    /**
+     * @param intens    double, intensity (sigma) of the Gaussian blur
+     * @return rad      int, border the blur crops from each side of the image
+     */
+    static int BlurRadius(double intens) {
+        return Math.max(GAUSSIAN_RADIUS, (int) Math.ceil(4 * intens));
+    }
+    
+    /**
+     * @param intens    double, intensity (sigma) of the Gaussian blur
+     * @return true if this intensity is blurred in constant time per pixel rather than with the kernel
+     */
+    static boolean Recursive(double intens) {
+        return intens > recursiveIntensity;
+    }
+    
+    /**
+     * @param intens    double, intensity (sigma) of the Gaussian blur
+     * @return mode     int, 0 for the kernel, otherwise BLUR_RECURSIVE or BLUR_BOX, plus BLUR_SEPARABLE if rows
+     *                  are blurred too
+     */
+    static int BlurMode(double intens) {
+        if (!Recursive(intens)) {
+            return 0;
+        }
+        
+        return (boxBlur ? BLUR_BOX : BLUR_RECURSIVE) | (separableBlur ? BLUR_SEPARABLE : 0);
+    }
+    
+    /**
+     * Send this method the blurred image to get the gradient magnitude and direction, from the 3x3 Sobel masks
+     * applied in place rather than through full gx and gy planes. Each blurred row is released (set to null) as
+     * soon as the last output row that needs it is done, so the blurred plane shrinks while the magnitude and
+     * direction planes grow, and the peak is about 5 bytes per pixel instead of the 17 that separate gx and gy
+     * planes add up to. Results are the same as Magnitude and Direction of the Sobel convolutions.
+     * 
+     * @param blurred   int[][], blurred grayscale values; its rows are set to null
+     * @param dir       byte[][], receives the DIR_* codes, two smaller than blurred in each dimension
+     * @param stats     int[2], receives the mean and standard deviation of the magnitude, or null to skip the
+     *                  sum and the variance pass
+     * @return mag      float[][], gradient magnitude at each pixel
+     */
+    static float[][] Gradient(int[][] blurred, byte[][] dir, int[] stats) {
+        double sum = 0;
+        int height = dir.length;
+        int width = dir[0].length;
+        float[][] mag = new float[height][width];
+        
+        for (int r = 0; r < height; r++) {
+            int[] top = blurred[r];
+            int[] mid = blurred[r + 1];
+            int[] bot = blurred[r + 2];
+            float[] magRow = mag[r];
+            byte[] dirRow = dir[r];
+            
+            for (int c = 0; c < width; c++) {
+                int gx = (top[c + 2] - top[c]) + 2 * (mid[c + 2] - mid[c]) + (bot[c + 2] - bot[c]);
+                int gy = (bot[c] + 2 * bot[c + 1] + bot[c + 2]) - (top[c] + 2 * top[c + 1] + top[c + 2]);
+                double magnitude = Math.sqrt(gx * gx + gy * gy);
+                
+                magRow[c] = (float) magnitude;
+                dirRow[c] = DirectionCode(gx, gy);
+                
+                if (stats != null) {
+                    sum += magnitude;
+                }
+            }
+            
+            blurred[r] = null;
+        }
+        
+        if (stats != null) {
+            Deviation(mag, sum, stats);
+        }
+        
+        return mag;
+    }
+    
     /**
      * Send this method the horizontal and vertical Sobel convolutions to create the gradient magnitude image.
+     * Magnitudes of 8-bit input fit comfortably in a float, so the plane is half the size of a double[][].
      * 
-     * @return void
+     * @param gx        int[][], horizontal Sobel convolution
+     * @param gy        int[][], vertical Sobel convolution
+     * @param stats     int[2], receives the mean and standard deviation of the magnitude, or null to skip both
+     *                  the sum and the variance pass
+     * @return mag      float[][], gradient magnitude at each pixel
      */
-    private static void Magnitude() {
+    static float[][] Magnitude(int[][] gx, int[][] gy, int[] stats) {
         double sum = 0;
-        double var = 0;
         int height = gx.length;
         int width = gx[0].length;
-        double pixelTotal = height * width;
-        mag = new double[height][width];
+        float[][] mag = new float[height][width];
+        
+        if (stats == null) {
+            for (int r = 0; r < height; r++) {
+                for (int c = 0; c < width; c++) {
+                    mag[r][c] = (float) Math.sqrt(gx[r][c] * gx[r][c] + gy[r][c] * gy[r][c]);
+                }
+            }
+            
+            return mag;
+        }
         
         for (int r = 0; r < height; r++) {
             for (int c = 0; c < width; c++) {
-                mag[r][c] = Math.sqrt(gx[r][c] * gx[r][c] + gy[r][c] * gy[r][c]);
+                double magnitude = Math.sqrt(gx[r][c] * gx[r][c] + gy[r][c] * gy[r][c]);
                 
-                sum += mag[r][c];
+                mag[r][c] = (float) magnitude;
+                sum += magnitude;
             }
         }
         
-        mean = (int) Math.round(sum / pixelTotal);
+        Deviation(mag, sum, stats);
+        
+        return mag;
+    }
+    
+    /*
+     * Rounded mean from the sum of the magnitudes, and the standard deviation of the plane about it.
+     */
+    private static void Deviation(float[][] mag, double sum, int[] stats) {
+        int height = mag.length;
+        int width = mag[0].length;
+        double pixelTotal = height * width;
+        double var = 0;
+        int mean = (int) Math.round(sum / pixelTotal);
         
         //Get variance
         for (int r = 0; r < height; r++) {
@@ -103,120 +347,202 @@ public class JCanny {
             }
         }
         
-        stDev = (int) Math.sqrt(var / pixelTotal);
+        stats[0] = mean;
+        stats[1] = (int) Math.sqrt(var / pixelTotal);
     }
     
     /**
      * Send this method the horizontal and vertical Sobel convolutions to create the gradient direction image.
      * 
-     * @return void
+     * @param gx        int[][], horizontal Sobel convolution
+     * @param gy        int[][], vertical Sobel convolution
+     * @return dir      byte[][], one of the DIR_* codes at each pixel
      */
-    private static void Direction() {
+    static byte[][] Direction(int[][] gx, int[][] gy) {
         int height = gx.length;
         int width = gx[0].length;
-        double piRad = 180 / Math.PI;
-        dir = new int[height][width];
+        byte[][] dir = new byte[height][width];
         
         for (int r = 0; r < height; r++) {
             for (int c = 0; c < width; c++) {
-                double angle = Math.atan2(gy[r][c], gx[r][c]) * piRad;    //Convert radians to degrees
-                
-                //Check for negative angles
-                if (angle < 0) {
-                    angle += 360.;
-                }
-                
-                //Each pixels ACTUAL angle is examined and placed in 1 of four groups (for the four searched 45-degree neighbors)
-                //Reorder this for optimization
-                if (angle <= 22.5 || (angle >= 157.5 && angle <= 202.5) || angle >= 337.5) {
-                    dir[r][c] = 0;      //Check left and right neighbors
-                } else if ((angle >= 22.5 && angle <= 67.5) || (angle >= 202.5 && angle <= 247.5)) {
-                    dir[r][c] = 45;     //Check diagonal (upper right and lower left) neighbors
-                } else if ((angle >= 67.5 && angle <= 112.5) || (angle >= 247.5 && angle <= 292.5)) {
-                    dir[r][c] = 90;     //Check top and bottom neighbors
-                } else {
-                    dir[r][c] = 135;    //Check diagonal (upper left and lower right) neighbors
-                }
+                dir[r][c] = DirectionCode(gx[r][c], gy[r][c]);
             }
         }
+        
+        return dir;
+    }
+    
+    /**
+     * Send this method a single pixel's horizontal and vertical gradient to get its direction code.
+     * 
+     * @param gx    int, horizontal Sobel response
+     * @param gy    int, vertical Sobel response
+     * @return code byte, one of the DIR_* codes
+     */
+    static byte DirectionCode(int gx, int gy) {
+        double ax = Math.abs((double) gx);
+        double ay = Math.abs((double) gy);
+        
+        //The angle's group from its tangent instead of atan2: the 22.5 and 67.5 degree boundaries have irrational
+        //tangents, so no integer gradient lies on one and the comparison gives the same group as the angle did
+        if (ay <= TAN_22_5 * ax) {
+            return DIR_0;
+        } else if (ay >= TAN_67_5 * ax) {
+            return DIR_90;
+        }
+        
+        return ((gx > 0) == (gy > 0)) ? DIR_45 : DIR_135;
     }
     
     /**
      * Call this method to use gradient direction and magnitude to suppress lesser pixels.
+     * The magnitude plane is modified in place.
+     * 
+     * @param mag   float[][], gradient magnitude
+     * @param dir   byte[][], gradient direction codes
+     */
+    static void Suppression(float[][] mag, byte[][] dir) {
+        Suppression(mag, dir, null);
+    }
+    
+    /**
+     * Same as Suppression, also summing the pixels that survive it. Pixel (r, c) suppresses (r - 1, c - 1),
+     * so row r - 1 is final once row r has been checked, and is summed then, while it is still in cache.
+     * The last two rows and columns are never checked, so they are left out of the sums.
      * 
-     * @return void
+     * @param mag       float[][], gradient magnitude
+     * @param dir       byte[][], gradient direction codes
+     * @param survivors double[3], adds the count, sum and sum of squares of the nonzero suppressed magnitudes;
+     *                  null to skip
      */
-    private static void Suppression() {
+    static void Suppression(float[][] mag, byte[][] dir, double[] survivors) {
         int height = mag.length - 1;
         int width = mag[0].length - 1;
         
         for (int r = 1; r < height; r++) {
             for (int c = 1; c < width; c++) {
-                double magnitude = mag[r][c];
+                float magnitude = mag[r][c];
                 
                 switch (dir[r][c]) {
-                    case 0 :
+                    case DIR_0 :
                         if (magnitude < mag[r][c - 1] && magnitude < mag[r][c + 1]) {
                             mag [r - 1][c - 1] = 0;
                         }
                         break;
-                    case 45 :
+                    case DIR_45 :
                         if (magnitude < mag[r - 1][c + 1] && magnitude < mag[r + 1][c - 1]) {
                             mag [r - 1][c - 1] = 0;
                         }
                         break;
-                    case 90 :
+                    case DIR_90 :
                         if (magnitude < mag[r - 1][c] && magnitude < mag[r + 1][c]) {
                             mag [r - 1][c - 1] = 0;
                         }
                         break;
-                    case 135 :
+                    case DIR_135 :
                         if (magnitude < mag[r - 1][c - 1] && magnitude < mag[r + 1][c + 1]) {
                             mag [r - 1][c - 1] = 0;
                         }
                         break;
                 }
             }
+            
+            if (survivors != null) {
+                Survivors(mag[r - 1], width - 1, survivors);
+            }
+        }
+    }
+    
+    /**
+     * Add a row of suppressed magnitude to the survivor sums.
+     * 
+     * @param row       float[], final suppressed magnitudes
+     * @param width     int, number of leading values that suppression checked
+     * @param survivors double[3], count, sum and sum of squares of the nonzero values
+     */
+    static void Survivors(float[] row, int width, double[] survivors) {
+        for (int c = 0; c < width; c++) {
+            float magnitude = row[c];
+            
+            if (magnitude != 0) {
+                survivors[0]++;
+                survivors[1] += magnitude;
+                survivors[2] += (double) magnitude * magnitude;
+            }
         }
     }
     
+    /**
+     * Turn survivor sums into a mean and standard deviation, rounding the mean before the deviation is taken
+     * from it, as Magnitude does.
+     * 
+     * @param survivors double[3], count, sum and sum of squares of the surviving magnitudes
+     * @param stats     int[2], receives the mean and standard deviation
+     */
+    static void SurvivorStats(double[] survivors, int[] stats) {
+        double count = Math.max(survivors[0], 1);
+        int mean = (int) Math.round(survivors[1] / count);
+        double var = survivors[2] - 2 * mean * survivors[1] + survivors[0] * mean * mean;
+        
+        stats[0] = mean;
+        stats[1] = (int) Math.sqrt(Math.max(var, 0) / count);
+    }
+    
     /**
      * Call this method to use an upper and lower threshold to decided which non-suppressed pixels are edges.
+     * Pixels are first sorted into a 2-bit strong/weak/none class map, which the connectivity check then reads
+     * instead of comparing every neighbor's magnitude against the thresholds again.
      * 
-     * @return bin  int[][], the binary image showing edges in the original.
+     * @param mag       float[][], suppressed gradient magnitude
+     * @param mean      int, mean gradient magnitude
+     * @param stDev     int, standard deviation of gradient magnitude
+     * @param numDev    int, number of standard deviations above the mean for the high threshold
+     * @param tFract    double, low threshold is this fraction of the high threshold
+     * @return edges    EdgeMap, the binary image showing edges in the original.
      */
-    private static int[][] Hysteresis() {
-        int height = mag.length - 1;
-        int width = mag[0].length - 1;
-        int[][] bin = new int[height - 1][width - 1];
+    static EdgeMap Hysteresis(float[][] mag, int mean, int stDev, int numDev, double tFract) {
+        double tHi = mean + (numDev * stDev);   //Magnitude greater than or equal to high threshold is an edge pixel
+        double tLo = tHi * tFract;              //Magnitude less than low threshold not an edge, equal or greater possible edge
         
-        tHi = mean + (numDev * stDev);    //Magnitude greater than or equal to high threshold is an edge pixel
-        tLo = tHi * tFract;               //Magnitude less than low threshold not an edge, equal or greater possible edge
+        return Hysteresis(ClassMap.Classify(mag, tHi, tLo));
+    }
+    
+    /**
+     * Call this method with a strong/weak/none class map to get the edges; a weak pixel is an edge if any
+     * of its 8 neighbors is strong.
+     * 
+     * @param classes   ClassMap, the classified suppressed magnitude
+     * @return edges    EdgeMap, one pixel smaller than the class map on every side.
+     */
+    static EdgeMap Hysteresis(ClassMap classes) {
+        int height = classes.getHeight() - 1;
+        int width = classes.getWidth() - 1;
+        EdgeMap edges = new EdgeMap(height - 1, width - 1);
         
         for (int r = 1; r < height; r++) {
             for (int c = 1; c < width; c++) {
-                double magnitude = mag[r][c];
+                int cls = classes.get(r, c);
                 
-                if (magnitude >= tHi) {
-                    bin[r - 1][c - 1] = 255;
-                } else if (magnitude < tLo) {
-                    bin[r - 1][c - 1] = 0;
-                } else {    //This could be separate method or lambda
+                if (cls == ClassMap.STRONG) {
+                    edges.set(r - 1, c - 1);
+                } else if (cls == ClassMap.WEAK) {    //This could be separate method or lambda
                     boolean connected = false;
                     
-                    for (int nr = -1; nr < 2; nr++) {
+                    for (int nr = -1; nr < 2 && !connected; nr++) {
                         for (int nc = -1; nc < 2; nc++) {
-                            if (mag[r + nr][c + nc] >= tHi) {
+                            if (classes.get(r + nr, c + nc) == ClassMap.STRONG) {
                                 connected = true;
                             }
                         }
                     }
                     
-                    bin[r - 1][c - 1] = (connected) ? 255 : 0;
+                    if (connected) {
+                        edges.set(r - 1, c - 1);
+                    }
                 }
             }
         }
         
-        return bin;
+        return edges;
     }
 }
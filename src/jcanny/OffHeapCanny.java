@@ -0,0 +1,112 @@
+/**
+ * Copyright 2016 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package jcanny;
+
+import java.util.stream.LongStream;
+
+/**
+ * This class runs the detector on OffHeapPlanes, for images too large for Java arrays (more than 2^31 pixels).
+ * It uses the same band streaming as FusedCanny but never holds a full intermediate plane, on or off the heap:
+ * a first pass over the bands only sums the magnitude statistics, and a second pass recomputes each band and
+ * feeds its suppressed rows straight into a streaming hysteresis that writes the edge bits. Memory is the input
+ * plane, the 1-bit output plane and a few rows per band.
+ * 
+ * The blur is always the Gaussian kernel; the constant-time blurs need the whole image at once. Results match
+ * FusedCanny for intensities at or below the recursive threshold.
+ * 
+ * @author robert
+ */
+
+public class OffHeapCanny {
+    private static final double GAUSSIAN_INTENSITY = 1.5;
+    private static final int BAND_ROWS = 256;   //Rows per band; each band recomputes 2 * rad + 4 halo rows
+    
+    /**
+     * Detect edges in an off-heap grayscale plane.
+     * 
+     * @param gray              OffHeapPlane, 8-bit grayscale input (OffHeapPlane.Bytes)
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @return edges            OffHeapPlane of bits, smaller than the input by the blur radius + 2 on each side.
+     *                          The caller releases it. Null if parameters are invalid.
+     */
+    public static OffHeapPlane CannyEdges(OffHeapPlane gray, int numberDeviations, double fract) {
+        return CannyEdges(gray, numberDeviations, fract, GAUSSIAN_INTENSITY, BAND_ROWS);
+    }
+    
+    /**
+     * Detect edges in an off-heap grayscale plane, with the blur intensity and band height given by the caller.
+     * 
+     * @param gray              OffHeapPlane, 8-bit grayscale input (OffHeapPlane.Bytes)
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @param intens            Intensity (sigma) of the Gaussian blur
+     * @param bandRows          Number of rows per band
+     * @return edges            OffHeapPlane of bits, the caller releases it. Null if parameters are invalid.
+     */
+    public static OffHeapPlane CannyEdges(OffHeapPlane gray, int numberDeviations, double fract, double intens,
+            int bandRows) {
+        if (gray == null || numberDeviations <= 0 || fract <= 0 || intens <= 0 || bandRows <= 0) {
+            return null;
+        }
+        
+        int rad = JCanny.BlurRadius(intens);
+        long height = gray.getHeight() - 2 * rad - 2;
+        int width = gray.getWidth() - 2 * rad - 2;
+        
+        if (height < 3 || width < 3) {
+            throw new IllegalArgumentException("ERROR: Image is too small for blur radius!");
+        }
+        
+        FusedCanny.RowSource source = gray::readGrayRow;
+        int grayWidth = gray.getWidth();
+        long bands = (height + bandRows - 1) / bandRows;
+        double[][] sums = new double[(int) bands][];
+        int[] stats = new int[2];
+        
+        //First pass: statistics only
+        LongStream.range(0, bands).parallel().forEach(b -> {
+            long first = b * bandRows;
+            long last = Math.min(first + bandRows, height);
+            
+            sums[(int) b] = FusedCanny.Band(source, grayWidth, rad, intens, first, last, last, height, null);
+        });
+        
+        if (!FusedCanny.Stats(sums, (double) height * width, stats)) {
+            FusedCanny.ExactStats(source, grayWidth, rad, intens, height, stats);
+        }
+        
+        double tHi = stats[0] + (numberDeviations * stats[1]);
+        double tLo = tHi * fract;
+        long edgeHeight = height - 2;
+        long edgeBands = (edgeHeight + bandRows - 1) / bandRows;
+        OffHeapPlane edges = OffHeapPlane.Bits(edgeHeight, width - 2);
+        
+        //Second pass: recompute each band and stream its suppressed rows through hysteresis
+        LongStream.range(0, edgeBands).parallel().forEach(b -> {
+            long first = b * bandRows;
+            long last = Math.min(first + bandRows, edgeHeight);
+            FusedCanny.HysteresisStream hysteresis = new FusedCanny.HysteresisStream(width, tHi, tLo, first, last,
+                    edges::writeBitRow);
+            
+            FusedCanny.Band(source, grayWidth, rad, intens, first, last + 2, first, height, hysteresis);
+        });
+        
+        return edges;
+    }
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright 2016 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package jcanny;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * This class holds an image plane outside the Java heap, in direct ByteBuffers of whole rows, so planes larger
+ * than 2^31 pixels (which no Java array can index) can be processed without GC pressure or a huge heap.
+ * Rows are indexed with a long; a row itself must fit in one buffer. Each buffer holds up to 1 GiB of rows.
+ * 
+ * Three layouts: Bytes (8-bit gray, 1 byte per pixel), Floats (4 bytes per pixel) and Bits (1 bit per pixel,
+ * (width + 7) / 8 bytes per row, most significant bit first as in PBM).
+ * 
+ * Direct memory is limited by -XX:MaxDirectMemorySize (by default the maximum heap size). Call release() (or
+ * use try-with-resources) to free it at once instead of waiting for the buffers to be collected. Different
+ * threads may read and write different rows at the same time.
+ * 
+ * @author robert
+ */
+
+public class OffHeapPlane implements AutoCloseable {
+    private static final long CHUNK_BYTES = 1L << 30;
+    
+    private final long height;
+    private final int width;
+    private final int rowBytes;
+    private final long rowsPerChunk;
+    private volatile ByteBuffer[] chunks;
+    
+    private OffHeapPlane(long height, int width, long rowBytes) {
+        if (height < 1 || width < 1 || rowBytes > CHUNK_BYTES) {
+            throw new IllegalArgumentException("ERROR: Invalid off-heap plane size!");
+        }
+        
+        long count;
+        
+        this.height = height;
+        this.width = width;
+        this.rowBytes = (int) rowBytes;
+        this.rowsPerChunk = CHUNK_BYTES / rowBytes;
+        count = (height + rowsPerChunk - 1) / rowsPerChunk;
+        chunks = new ByteBuffer[(int) count];
+        
+        for (int i = 0; i < count; i++) {
+            long rows = Math.min(rowsPerChunk, height - i * rowsPerChunk);
+            
+            chunks[i] = ByteBuffer.allocateDirect((int) (rows * rowBytes)).order(ByteOrder.nativeOrder());
+        }
+    }
+    
+    /**
+     * @return plane    OffHeapPlane of 8-bit gray pixels, all 0
+     */
+    public static OffHeapPlane Bytes(long height, int width) {
+        return new OffHeapPlane(height, width, width);
+    }
+    
+    /**
+     * @return plane    OffHeapPlane of float pixels, all 0
+     */
+    public static OffHeapPlane Floats(long height, int width) {
+        return new OffHeapPlane(height, width, 4L * width);
+    }
+    
+    /**
+     * @return plane    OffHeapPlane of 1-bit pixels, all 0
+     */
+    public static OffHeapPlane Bits(long height, int width) {
+        return new OffHeapPlane(height, width, (width + 7) / 8);
+    }
+    
+    /**
+     * Read a raw row-major 8-bit gray image into a new Bytes plane.
+     * 
+     * @param in        ReadableByteChannel, e.g. a FileChannel positioned at the first pixel
+     * @param height    long, number of rows
+     * @param width     int, number of columns
+     * @return plane    OffHeapPlane holding the image
+     * @throws IOException if the channel ends early or cannot be read
+     */
+    public static OffHeapPlane ReadBytes(ReadableByteChannel in, long height, int width) throws IOException {
+        OffHeapPlane plane = Bytes(height, width);
+        
+        for (ByteBuffer chunk : plane.chunks) {
+            ByteBuffer buf = chunk.duplicate();
+            
+            while (buf.hasRemaining()) {
+                if (in.read(buf) < 0) {
+                    plane.release();
+                    throw new IOException("ERROR: Image data ends early!");
+                }
+            }
+        }
+        
+        return plane;
+    }
+    
+    /**
+     * Write the plane's bytes, row after row, to a channel. For a Bits plane, prefixing "P4\nwidth height\n"
+     * gives a PBM file.
+     * 
+     * @param out   WritableByteChannel, e.g. a FileChannel
+     * @throws IOException if the channel cannot be written
+     */
+    public void write(WritableByteChannel out) throws IOException {
+        for (ByteBuffer chunk : Chunks()) {
+            ByteBuffer buf = chunk.duplicate();
+            
+            ((Buffer) buf).clear();
+            
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+        }
+    }
+    
+    public long getHeight() {
+        return height;
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getGray(long r, int c) {
+        return Chunk(r).get(Offset(r) + c) & 0xff;
+    }
+    
+    public void setGray(long r, int c, int value) {
+        Chunk(r).put(Offset(r) + c, (byte) value);
+    }
+    
+    public float getFloat(long r, int c) {
+        return Chunk(r).getFloat(Offset(r) + 4 * c);
+    }
+    
+    public void setFloat(long r, int c, float value) {
+        Chunk(r).putFloat(Offset(r) + 4 * c, value);
+    }
+    
+    public boolean getBit(long r, int c) {
+        return (Chunk(r).get(Offset(r) + (c >> 3)) & (0x80 >>> (c & 7))) != 0;
+    }
+    
+    public void setBit(long r, int c, boolean value) {
+        ByteBuffer chunk = Chunk(r);
+        int i = Offset(r) + (c >> 3);
+        int bit = 0x80 >>> (c & 7);
+        
+        chunk.put(i, (byte) (value ? (chunk.get(i) | bit) : (chunk.get(i) & ~bit)));
+    }
+    
+    /**
+     * Read a row of a Bytes plane as ints 0-255.
+     */
+    public void readGrayRow(long r, int[] out) {
+        ByteBuffer chunk = Chunk(r);
+        int offset = Offset(r);
+        
+        for (int c = 0; c < width; c++) {
+            out[c] = chunk.get(offset + c) & 0xff;
+        }
+    }
+    
+    /**
+     * Write a row of a Bytes plane from ints 0-255.
+     */
+    public void writeGrayRow(long r, int[] row) {
+        ByteBuffer chunk = Chunk(r);
+        int offset = Offset(r);
+        
+        for (int c = 0; c < width; c++) {
+            chunk.put(offset + c, (byte) row[c]);
+        }
+    }
+    
+    /**
+     * Write a row of a Bits plane, packing the booleans 8 to a byte.
+     */
+    public void writeBitRow(long r, boolean[] row) {
+        ByteBuffer chunk = Chunk(r);
+        int offset = Offset(r);
+        int bits = 0;
+        
+        for (int c = 0; c < width; c++) {
+            bits = (bits << 1) | (row[c] ? 1 : 0);
+            
+            if ((c & 7) == 7) {
+                chunk.put(offset + (c >> 3), (byte) bits);
+                bits = 0;
+            }
+        }
+        
+        if ((width & 7) != 0) {
+            chunk.put(offset + (width >> 3), (byte) (bits << (8 - (width & 7))));
+        }
+    }
+    
+    /**
+     * @return count    long, number of set pixels in a Bits plane
+     */
+    public long cardinality() {
+        long count = 0;
+        
+        for (ByteBuffer chunk : Chunks()) {
+            for (int i = 0; i < chunk.capacity(); i++) {
+                count += Integer.bitCount(chunk.get(i) & 0xff);
+            }
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Free the plane's memory now. The plane cannot be used afterwards; releasing twice does nothing.
+     */
+    public void release() {
+        ByteBuffer[] old = chunks;
+        
+        chunks = null;
+        
+        if (old != null) {
+            for (ByteBuffer chunk : old) {
+                Free(chunk);
+            }
+        }
+    }
+    
+    @Override
+    public void close() {
+        release();
+    }
+    
+    private ByteBuffer[] Chunks() {
+        ByteBuffer[] current = chunks;
+        
+        if (current == null) {
+            throw new IllegalStateException("ERROR: Off-heap plane has been released!");
+        }
+        
+        return current;
+    }
+    
+    private ByteBuffer Chunk(long r) {
+        return Chunks()[(int) (r / rowsPerChunk)];
+    }
+    
+    private int Offset(long r) {
+        return (int) (r % rowsPerChunk) * rowBytes;
+    }
+    
+    /*
+     * Run a direct buffer's cleaner: Unsafe.invokeCleaner on Java 9+, the buffer's own cleaner on Java 8.
+     * If neither is reachable the memory is freed when the buffer is collected.
+     */
+    private static void Free(ByteBuffer buf) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buf);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            try {
+                Method cleanerMethod = buf.getClass().getMethod("cleaner");
+                
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buf);
+                
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+                //Left to the garbage collector
+            }
+        }
+    }
+}
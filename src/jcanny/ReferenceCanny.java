@@ -0,0 +1,209 @@
+/**
+ * Copyright 2016 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package jcanny;
+
+/**
+ * This class is a frozen copy of the original scalar detector (blur, Sobel, double magnitude, degree directions,
+ * suppression and hysteresis on int[][]), kept as the reference the regression harness compares faster code
+ * paths against. Do not optimize or "fix" it: its quirks are the behavior the other paths must reproduce.
+ * 
+ * @author robert
+ */
+
+public class ReferenceCanny {
+    
+    /**
+     * Send this method a grayscale array and detector parameters to get the reference edges.
+     * 
+     * @param raw       int[][], grayscale pixel values 0-255
+     * @param numDev    int, number of standard deviations above the mean for the high threshold
+     * @param tFract    double, low threshold is this fraction of the high threshold
+     * @param rad       int, radius of the Gaussian kernel
+     * @param intens    double, intensity of the Gaussian kernel
+     * @return bin      int[][], 255 for edge pixels, 0 otherwise
+     */
+    public static int[][] CannyEdges(int[][] raw, int numDev, double tFract, int rad, double intens) {
+        int[][] blurred = Blur(raw, rad, intens);
+        int[][] gx = Convolve(blurred, new int[][] { {-1, 0, 1}, {-2, 0, 2}, {-1, 0, 1} });
+        int[][] gy = Convolve(blurred, new int[][] { {-1, -2, -1}, {0, 0, 0}, {1, 2, 1} });
+        int height = gx.length;
+        int width = gx[0].length;
+        double pixelTotal = height * width;
+        double[][] mag = new double[height][width];
+        int[][] dir = new int[height][width];
+        double sum = 0;
+        double var = 0;
+        
+        //Magnitude and its statistics
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                mag[r][c] = Math.sqrt(gx[r][c] * gx[r][c] + gy[r][c] * gy[r][c]);
+                sum += mag[r][c];
+            }
+        }
+        
+        int mean = (int) Math.round(sum / pixelTotal);
+        
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                double diff = mag[r][c] - mean;
+                
+                var += (diff * diff);
+            }
+        }
+        
+        int stDev = (int) Math.sqrt(var / pixelTotal);
+        
+        //Direction in degrees
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                double angle = Math.atan2(gy[r][c], gx[r][c]) * (180 / Math.PI);
+                
+                if (angle < 0) {
+                    angle += 360.;
+                }
+                
+                if (angle <= 22.5 || (angle >= 157.5 && angle <= 202.5) || angle >= 337.5) {
+                    dir[r][c] = 0;
+                } else if ((angle >= 22.5 && angle <= 67.5) || (angle >= 202.5 && angle <= 247.5)) {
+                    dir[r][c] = 45;
+                } else if ((angle >= 67.5 && angle <= 112.5) || (angle >= 247.5 && angle <= 292.5)) {
+                    dir[r][c] = 90;
+                } else {
+                    dir[r][c] = 135;
+                }
+            }
+        }
+        
+        //Suppression, in place, zeroing the pixel up and to the left of the one examined
+        for (int r = 1; r < height - 1; r++) {
+            for (int c = 1; c < width - 1; c++) {
+                double magnitude = mag[r][c];
+                
+                switch (dir[r][c]) {
+                    case 0 :
+                        if (magnitude < mag[r][c - 1] && magnitude < mag[r][c + 1]) {
+                            mag[r - 1][c - 1] = 0;
+                        }
+                        break;
+                    case 45 :
+                        if (magnitude < mag[r - 1][c + 1] && magnitude < mag[r + 1][c - 1]) {
+                            mag[r - 1][c - 1] = 0;
+                        }
+                        break;
+                    case 90 :
+                        if (magnitude < mag[r - 1][c] && magnitude < mag[r + 1][c]) {
+                            mag[r - 1][c - 1] = 0;
+                        }
+                        break;
+                    case 135 :
+                        if (magnitude < mag[r - 1][c - 1] && magnitude < mag[r + 1][c + 1]) {
+                            mag[r - 1][c - 1] = 0;
+                        }
+                        break;
+                }
+            }
+        }
+        
+        //Hysteresis
+        double tHi = mean + (numDev * stDev);
+        double tLo = tHi * tFract;
+        int[][] bin = new int[height - 2][width - 2];
+        
+        for (int r = 1; r < height - 1; r++) {
+            for (int c = 1; c < width - 1; c++) {
+                double magnitude = mag[r][c];
+                
+                if (magnitude >= tHi) {
+                    bin[r - 1][c - 1] = 255;
+                } else if (magnitude >= tLo) {
+                    boolean connected = false;
+                    
+                    for (int nr = -1; nr < 2; nr++) {
+                        for (int nc = -1; nc < 2; nc++) {
+                            if (mag[r + nr][c + nc] >= tHi) {
+                                connected = true;
+                            }
+                        }
+                    }
+                    
+                    bin[r - 1][c - 1] = (connected) ? 255 : 0;
+                }
+            }
+        }
+        
+        return bin;
+    }
+    
+    /*
+     * The original Gaussian.BlurGS: its vertical pass overwrites the horizontal one.
+     */
+    private static int[][] Blur(int[][] raw, int rad, double intens) {
+        int height = raw.length;
+        int width = raw[0].length;
+        double norm = 0.;
+        double intensSquared2 = 2 * intens * intens;
+        double invIntensSqrPi = 1 / (Math.sqrt(2 * Math.PI) * intens);
+        double[] mask = new double[2 * rad + 1];
+        int[][] outGS = new int[height - 2 * rad][width - 2 * rad];
+        
+        for (int x = -rad; x < rad + 1; x++) {
+            double exp = Math.exp(-((x * x) / intensSquared2));
+            
+            mask[x + rad] = invIntensSqrPi * exp;
+            norm += mask[x + rad];
+        }
+        
+        for (int r = rad; r < height - rad; r++) {
+            for (int c = rad; c < width - rad; c++) {
+                double sum = 0.;
+                
+                for (int mr = -rad; mr < rad + 1; mr++) {
+                    sum += (mask[mr + rad] * raw[r + mr][c]);
+                }
+                
+                sum /= norm;
+                outGS[r - rad][c - rad] = (int) Math.round(sum);
+            }
+        }
+        
+        return outGS;
+    }
+    
+    private static int[][] Convolve(int[][] raw, int[][] mask) {
+        int height = raw.length;
+        int width = raw[0].length;
+        int[][] out = new int[height - 2][width - 2];
+        
+        for (int r = 1; r < height - 1; r++) {
+            for (int c = 1; c < width - 1; c++) {
+                int sum = 0;
+                
+                for (int kr = -1; kr < 2; kr++) {
+                    for (int kc = -1; kc < 2; kc++) {
+                        sum += (mask[kr + 1][kc + 1] * raw[r + kr][c + kc]);
+                    }
+                }
+                
+                out[r - 1][c - 1] = sum;
+            }
+        }
+        
+        return out;
+    }
+}
@@ -0,0 +1,663 @@
+/**
+ * Copyright 2016 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package jcanny;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class is the regression and differential harness for the detector. It runs every registered backend on
+ * the SyntheticImages patterns at several sizes and parameters, compares each result pixel by pixel with an
+ * expected result, and reports mismatches and throughput. It exits with status 1 if anything fails.
+ * 
+ * Detection   at kernel intensities every backend is compared with the frozen ReferenceCanny; above the
+ *             recursive switch, with the recursive and the box blur each selected columns-only and separable,
+ *             with the scalar JCanny path (kernel-only backends with ReferenceCanny at the same intensity)
+ * Switch      the kernel just below the switch against the recursive blur forced at the same intensity, within
+ *             half a percent of the edge pixels, so moving the switch does not change what the detector finds
+ * Blur        BlurGSVertical against BlurGS, and BlurGSRecursive and BlurGSBox against a separable
+ *             sampled-kernel Gaussian, of radius BlurRadius, rounded to gray levels, within the accuracy
+ *             Gaussian documents
+ * Statistics  FusedCanny.ExactStats, the sequential sums the banded statistics fall back to near a rounding
+ *             boundary, against JCanny's statistics; and the banded statistics wherever Stats decides them
+ * Survivors   survivor-statistics mode of JCanny and of FusedCanny at two band heights, against the same
+ *             thresholds applied through the class map and separate hysteresis pass
+ * PostProcess thinning keeps the number of components of every detected map; pruning removes exactly the
+ *             components smaller than the minimum; bridging fills known gaps, each pixel counted once
+ * 
+ * To cover a new code path, register it in the static block below with the number of pixels it may differ by.
+ * 
+ * Command-line arguments: [repeats] (timed runs per case, default 3)
+ * 
+ * @author robert
+ */
+
+public class Regression {
+    private static final int[][] SIZES = { {48, 64}, {191, 257}, {480, 640}, {768, 1024} };  //Height, width
+    private static final double[] INTENSITIES = { 1.5, 2.5 };          //Kernel blur
+    private static final double[] RECURSIVE_INTENSITIES = { 5.0 };     //Above the recursive switch
+    private static final double[] BLUR_INTENSITIES = { 3.5, 5.0, 8.0 };
+    private static final int[] DEVIATIONS = { 1, 2 };
+    private static final double FRACT = .2;
+    private static final long SEED = 1986;
+    //Gray levels from the rounded kernel blur: worst measured on these patterns, columns-only / separable,
+    //recursive 1 / 0.07 and 1 / 0.026, box 4 / 1.4 and 5 / 1.8
+    private static final double RECURSIVE_MAX = 1;      //Largest difference
+    private static final double RECURSIVE_MEAN = 0.08;  //Mean difference
+    private static final double BOX_MAX = 6;
+    private static final double BOX_MEAN = 2;
+    private static final double SWITCH_INTENSITY = 2.99;    //Just below the default switch
+    private static final double SWITCH_FRACTION = 0.005;    //Of the kernel's edge pixels; worst measured 0.0036
+    
+    private static final TileScheduler SCHEDULER = new TileScheduler(2, 32);
+    private static final EdgeCache CACHE = new EdgeCache(64L << 20);
+    private static final Map<String, Backend> BACKENDS = new LinkedHashMap<>();
+    private static final Map<String, Long> TOLERANCE = new LinkedHashMap<>();
+    private static final Set<String> KERNEL_ONLY = new HashSet<>();
+    
+    /**
+     * A detector code path under test.
+     */
+    public interface Backend {
+        EdgeMap Detect(int[][] gray, int numDev, double fract, double intens);
+    }
+    
+    static {
+        Register("scalar", 0, JCanny::CannyEdgeMap);
+        Register("fused", 0, (gray, numDev, fract, intens) ->
+                FusedCanny.CannyEdgeMap(ImageUtils.GSImg(gray), numDev, fract, intens, 64));
+        Register("fused-row", 0, (gray, numDev, fract, intens) ->
+                FusedCanny.CannyEdgeMap(ImageUtils.GSImg(gray), numDev, fract, intens, 1));
+        Register("pipeline", 0, (gray, numDev, fract, intens) ->
+                new CannyPipeline(gray, numDev, fract, intens).getEdges());
+        Register("offheap", 0, true, Regression::OffHeap);
+        Register("scheduled", 0, (gray, numDev, fract, intens) ->
+                SCHEDULER.submit(gray, numDev, fract, intens, TileScheduler.BULK, "regression").join());
+        Register("cached", 0, (gray, numDev, fract, intens) -> {
+            CACHE.CannyEdgeMap(gray, numDev, fract, intens);
+            return CACHE.CannyEdgeMap(gray, numDev, fract, intens);  //Answered from the cache
+        });
+    }
+    
+    /**
+     * Add a backend to the harness.
+     * 
+     * @param name      String, name shown in the report
+     * @param tolerance long, number of pixels that may differ from the expected result
+     * @param backend   Backend, the code path
+     */
+    public static void Register(String name, long tolerance, Backend backend) {
+        Register(name, tolerance, false, backend);
+    }
+    
+    /**
+     * Add a backend to the harness.
+     * 
+     * @param name          String, name shown in the report
+     * @param tolerance     long, number of pixels that may differ from the expected result
+     * @param kernelOnly    boolean, true if the backend always blurs with the kernel, whatever the intensity
+     * @param backend       Backend, the code path
+     */
+    public static void Register(String name, long tolerance, boolean kernelOnly, Backend backend) {
+        BACKENDS.put(name, backend);
+        TOLERANCE.put(name, tolerance);
+        
+        if (kernelOnly) {
+            KERNEL_ONLY.add(name);
+        }
+    }
+    
+    public static void main(String[] args) {
+        int repeats = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+        Map<String, long[]> totals = new LinkedHashMap<>();     //Nanoseconds and pixels per backend
+        long[] reference = new long[2];
+        int failures = 0;
+        
+        for (String name : BACKENDS.keySet()) {
+            totals.put(name, new long[2]);
+        }
+        
+        failures += Detection(INTENSITIES, "kernel", repeats, totals, reference);
+        
+        //The same cases with each constant-time blur selected above the switch, columns only and separable
+        for (boolean separable : new boolean[] { false, true }) {
+            for (boolean box : new boolean[] { false, true }) {
+                JCanny.SetRecursiveIntensity(3.0, box, separable);
+                failures += Detection(RECURSIVE_INTENSITIES, (box ? "box" : "recursive") + (separable ? "-2d" : ""),
+                        0, totals, reference);
+            }
+        }
+        
+        JCanny.SetRecursiveIntensity(3.0, false);
+        failures += Switch();
+        failures += Blur();
+        failures += Statistics();
+        failures += Survivors();
+        failures += PostProcess();
+        
+        System.out.println();
+        System.out.println(String.format("%-10s %8.2f MP/s", "reference", reference[1] / (reference[0] / 1e3)));
+        
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            long[] t = entry.getValue();
+            
+            System.out.println(String.format("%-10s %8.2f MP/s", entry.getKey(), (t[0] > 0) ? t[1] / (t[0] / 1e3) : 0));
+        }
+        
+        System.out.println((failures == 0) ? "ALL PASSED" : failures + " FAILED");
+        System.exit((failures == 0) ? 0 : 1);
+    }
+    
+    /*
+     * Every backend on every pattern and size at these intensities. Kernel intensities, and kernel-only backends,
+     * are checked against ReferenceCanny; the rest against the scalar JCanny path.
+     */
+    private static int Detection(double[] intensities, String blur, int repeats, Map<String, long[]> totals,
+            long[] reference) {
+        int failures = 0;
+        
+        for (int[] size : SIZES) {
+            for (String pattern : SyntheticImages.NAMES) {
+                int[][] gray = SyntheticImages.Generate(pattern, size[0], size[1], SEED);
+                
+                for (double intens : intensities) {
+                    for (int numDev : DEVIATIONS) {
+                        int rad = JCanny.BlurRadius(intens);
+                        long start = System.nanoTime();
+                        int[][] kernel = ReferenceCanny.CannyEdges(gray, numDev, FRACT, rad, intens);
+                        int[][] scalar = JCanny.Recursive(intens)
+                                ? JCanny.CannyEdgeMap(gray, numDev, FRACT, intens).toArray() : kernel;
+                        long pixels = (long) size[0] * size[1];
+                        
+                        reference[0] += System.nanoTime() - start;
+                        reference[1] += pixels;
+                        
+                        for (Map.Entry<String, Backend> entry : BACKENDS.entrySet()) {
+                            String name = entry.getKey();
+                            int[][] expected = KERNEL_ONLY.contains(name) ? kernel : scalar;
+                            EdgeMap edges = entry.getValue().Detect(gray, numDev, FRACT, intens);
+                            long diff = Compare(expected, edges);
+                            long allowed = TOLERANCE.get(name);
+                            boolean pass = diff <= allowed;
+                            
+                            for (int i = 0; i < repeats; i++) {
+                                start = System.nanoTime();
+                                entry.getValue().Detect(gray, numDev, FRACT, intens);
+                                totals.get(name)[0] += System.nanoTime() - start;
+                                totals.get(name)[1] += pixels;
+                            }
+                            
+                            if (!pass) {
+                                failures++;
+                            }
+                            
+                            System.out.println(String.format("%-5s %4dx%-4d %-8s %-9s intens %.1f dev %d %-10s diff %d %s",
+                                    pass ? "PASS" : "FAIL", size[1], size[0], pattern, blur, intens, numDev, name,
+                                    diff, (diff > 0) ? "(tolerance " + allowed + ")" : ""));
+                        }
+                    }
+                }
+            }
+        }
+        
+        return failures;
+    }
+    
+    /*
+     * Crossing the switch: the kernel just below it against the recursive blur forced at the same intensity.
+     */
+    private static int Switch() {
+        int failures = 0;
+        
+        for (int[] size : SIZES) {
+            for (String pattern : SyntheticImages.NAMES) {
+                int[][] gray = SyntheticImages.Generate(pattern, size[0], size[1], SEED);
+                
+                for (int numDev : DEVIATIONS) {
+                    JCanny.SetRecursiveIntensity(3.0, false);
+                    
+                    EdgeMap kernel = JCanny.CannyEdgeMap(gray, numDev, FRACT, SWITCH_INTENSITY);
+                    
+                    JCanny.SetRecursiveIntensity(SWITCH_INTENSITY - 1, false);
+                    
+                    long diff = Compare(kernel.toArray(), JCanny.CannyEdgeMap(gray, numDev, FRACT, SWITCH_INTENSITY));
+                    long allowed = (long) Math.ceil(SWITCH_FRACTION * kernel.cardinality());
+                    boolean pass = diff <= allowed;
+                    
+                    if (!pass) {
+                        failures++;
+                    }
+                    
+                    System.out.println(String.format("%-5s %4dx%-4d %-8s switch    intens %.2f dev %d %-10s diff %d (tolerance %d)",
+                            pass ? "PASS" : "FAIL", size[1], size[0], pattern, SWITCH_INTENSITY, numDev, "recursive",
+                            diff, allowed));
+                }
+            }
+        }
+        
+        JCanny.SetRecursiveIntensity(3.0, false);
+        
+        return failures;
+    }
+    
+    /*
+     * The columns-only constant-time blurs against BlurGS, and the separable ones against a separable
+     * sampled-kernel Gaussian, all with the same crop.
+     */
+    private static int Blur() {
+        int failures = 0;
+        
+        for (int[] size : SIZES) {
+            for (String pattern : SyntheticImages.NAMES) {
+                int[][] gray = SyntheticImages.Generate(pattern, size[0], size[1], SEED);
+                
+                for (double intens : BLUR_INTENSITIES) {
+                    int rad = JCanny.BlurRadius(intens);
+                    
+                    if (size[0] <= 2 * rad || size[1] <= 2 * rad) {
+                        continue;
+                    }
+                    
+                    int[][] kernel = Gaussian.BlurGS(gray, rad, intens);
+                    double[][] vertical = new double[kernel.length][kernel[0].length];
+                    double[][] separable = SampledGaussian(gray, rad, intens);
+                    
+                    for (int r = 0; r < kernel.length; r++) {
+                        for (int c = 0; c < kernel[0].length; c++) {
+                            vertical[r][c] = kernel[r][c];
+                        }
+                    }
+                    
+                    failures += BlurCase(size, pattern, intens, "recursive", false,
+                            BlurError(vertical, Gaussian.BlurGSVertical(gray, rad, intens, false)));
+                    failures += BlurCase(size, pattern, intens, "box", true,
+                            BlurError(vertical, Gaussian.BlurGSVertical(gray, rad, intens, true)));
+                    failures += BlurCase(size, pattern, intens, "recursive-2d", false,
+                            BlurError(separable, Gaussian.BlurGSRecursive(gray, rad, intens)));
+                    failures += BlurCase(size, pattern, intens, "box-2d", true,
+                            BlurError(separable, Gaussian.BlurGSBox(gray, rad, intens)));
+                }
+            }
+        }
+        
+        return failures;
+    }
+    
+    private static int BlurCase(int[] size, String pattern, double intens, String blur, boolean box, double[] error) {
+        boolean pass = box ? (error[0] <= BOX_MAX && error[1] <= BOX_MEAN)
+                : (error[0] <= RECURSIVE_MAX && error[1] <= RECURSIVE_MEAN);
+        
+        System.out.println(String.format("%-5s %4dx%-4d %-8s blur      intens %.1f       %-12s max %.0f mean %.4f",
+                pass ? "PASS" : "FAIL", size[1], size[0], pattern, intens, blur, error[0], error[1]));
+        
+        return pass ? 0 : 1;
+    }
+    
+    /*
+     * Magnitude statistics from the row sources the banded backends use, kernel intensities streaming the blur
+     * and constant-time ones reading the blurred image, against JCanny's sums over the whole plane.
+     */
+    private static int Statistics() {
+        int failures = 0;
+        double[] intensities = { INTENSITIES[0], INTENSITIES[1], RECURSIVE_INTENSITIES[0] };
+        
+        for (int[] size : SIZES) {
+            for (String pattern : SyntheticImages.NAMES) {
+                int[][] gray = SyntheticImages.Generate(pattern, size[0], size[1], SEED);
+                
+                for (double intens : intensities) {
+                    int[][] blurred = JCanny.Blur(gray, intens);
+                    int height = blurred.length - 2;
+                    int width = blurred[0].length - 2;
+                    int[] expected = new int[2];
+                    int[] exact = new int[2];
+                    int[] banded = new int[2];
+                    boolean kernel = !JCanny.Recursive(intens);
+                    int[][] source = kernel ? gray : JCanny.Blur(gray, intens);
+                    int rad = kernel ? JCanny.BlurRadius(intens) : 0;
+                    FusedCanny.RowSource rows = (r, out) -> System.arraycopy(source[(int) r], 0, out, 0, out.length);
+                    int bands = (height + 63) / 64;
+                    double[][] sums = new double[bands][];
+                    
+                    JCanny.Gradient(blurred, new byte[height][width], expected);
+                    FusedCanny.ExactStats(rows, source[0].length, rad, intens, height, exact);
+                    
+                    for (int b = 0; b < bands; b++) {
+                        int first = b * 64;
+                        int last = Math.min(first + 64, height);
+                        
+                        sums[b] = FusedCanny.Band(rows, source[0].length, rad, intens, first, last, last, height, null);
+                    }
+                    
+                    boolean decided = FusedCanny.Stats(sums, (double) height * width, banded);
+                    boolean pass = Arrays.equals(expected, exact) && (!decided || Arrays.equals(expected, banded));
+                    
+                    if (!pass) {
+                        failures++;
+                    }
+                    
+                    System.out.println(String.format("%-5s %4dx%-4d %-8s stats     intens %.1f mean %d dev %d exact %d %d banded %d %d%s",
+                            pass ? "PASS" : "FAIL", size[1], size[0], pattern, intens, expected[0], expected[1],
+                            exact[0], exact[1], banded[0], banded[1], decided ? "" : " (undecided)"));
+                }
+            }
+        }
+        
+        return failures;
+    }
+    
+    /*
+     * Survivor-statistics mode: JCanny and FusedCanny at two band heights, pixel for pixel, against the survivor
+     * thresholds applied through the class map, so the streaming sweep both of them use is checked too.
+     */
+    private static int Survivors() {
+        int failures = 0;
+        double[] intensities = { INTENSITIES[0], RECURSIVE_INTENSITIES[0] };
+        
+        for (int[] size : SIZES) {
+            for (String pattern : SyntheticImages.NAMES) {
+                int[][] gray = SyntheticImages.Generate(pattern, size[0], size[1], SEED);
+                
+                for (double intens : intensities) {
+                    for (int numDev : DEVIATIONS) {
+                        int[][] expected = SurvivorReference(gray, numDev, intens);
+                        
+                        for (int bandRows : new int[] { 0, 64, 1 }) {
+                            EdgeMap edges = (bandRows == 0)
+                                    ? JCanny.CannyEdgeMap(gray, numDev, FRACT, intens, true)
+                                    : FusedCanny.CannyEdgeMap(ImageUtils.GSImg(gray), numDev, FRACT, intens,
+                                            bandRows, true);
+                            long diff = Compare(expected, edges);
+                            
+                            if (diff > 0) {
+                                failures++;
+                            }
+                            
+                            System.out.println(String.format("%-5s %4dx%-4d %-8s survivors intens %.1f dev %d %-10s diff %d",
+                                    (diff == 0) ? "PASS" : "FAIL", size[1], size[0], pattern, intens, numDev,
+                                    (bandRows == 0) ? "scalar" : "fused-" + bandRows, diff));
+                        }
+                    }
+                }
+            }
+        }
+        
+        return failures;
+    }
+    
+    /*
+     * EdgePostProcess on the detected maps, against components labelled here, and on hand-made gaps.
+     */
+    private static int PostProcess() {
+        int failures = 0;
+        int minLength = 10;
+        
+        for (int[] size : SIZES) {
+            for (String pattern : SyntheticImages.NAMES) {
+                int[][] gray = SyntheticImages.Generate(pattern, size[0], size[1], SEED);
+                EdgeMap detected = JCanny.CannyEdgeMap(gray, DEVIATIONS[0], FRACT, INTENSITIES[0]);
+                List<Integer> sizes = new ArrayList<>();
+                int[][] labels = Label(detected.toArray(), sizes);
+                
+                //Thinning must not split or join components
+                EdgeMap thinned = detected.copy();
+                long thin = EdgePostProcess.Thin(thinned);
+                List<Integer> thinSizes = new ArrayList<>();
+                
+                Label(thinned.toArray(), thinSizes);
+                
+                long diff = Math.abs(thinSizes.size() - sizes.size());
+                
+                failures += Report(size, pattern, "thin", diff, thin);
+                
+                //Pruning must remove the small components and nothing else
+                int[][] expected = detected.toArray();
+                long small = 0;
+                
+                for (int r = 0; r < expected.length; r++) {
+                    for (int c = 0; c < expected[0].length; c++) {
+                        if (labels[r][c] > 0 && sizes.get(labels[r][c] - 1) < minLength) {
+                            expected[r][c] = 0;
+                            small++;
+                        }
+                    }
+                }
+                
+                EdgeMap pruned = detected.copy();
+                long prune = EdgePostProcess.Prune(pruned, minLength);
+                
+                failures += Report(size, pattern, "prune", Compare(expected, pruned) + Math.abs(prune - small), prune);
+            }
+        }
+        
+        //Two horizontal runs with a gap of 3; both ends see the gap, but it is filled, and counted, once
+        int[] gap = { 10, 20, 24, 34 };
+        int[][] bridged = new int[30][50];
+        EdgeMap open = new EdgeMap(30, 50);
+        byte[][] dir = new byte[32][52];
+        
+        for (int c = gap[0]; c <= gap[3]; c++) {
+            bridged[10][c] = 255;
+            
+            if (c <= gap[1] || c >= gap[2]) {
+                open.set(10, c);
+            }
+        }
+        
+        for (byte[] row : dir) {
+            Arrays.fill(row, JCanny.DIR_90);    //Gradient up and down, so the edge runs left and right
+        }
+        
+        int[] size = { 30, 50 };
+        EdgeMap straight = open.copy();
+        EdgeMap along = open.copy();
+        long fill = EdgePostProcess.Bridge(straight, 3);
+        
+        failures += Report(size, "gap", "bridge", Compare(bridged, straight) + Math.abs(fill - 3), fill);
+        fill = EdgePostProcess.Bridge(along, dir, 3);
+        failures += Report(size, "gap", "bridge-dir", Compare(bridged, along) + Math.abs(fill - 3), fill);
+        
+        //One pixel more than maxGap stays open
+        EdgeMap wide = open.copy();
+        
+        fill = EdgePostProcess.Bridge(wide, 2);
+        failures += Report(size, "gap", "bridge-max", Compare(open.toArray(), wide) + fill, fill);
+        
+        return failures;
+    }
+    
+    private static int Report(int[] size, String pattern, String step, long diff, long pixels) {
+        System.out.println(String.format("%-5s %4dx%-4d %-8s postproc %-10s pixels %-6d diff %d",
+                (diff == 0) ? "PASS" : "FAIL", size[1], size[0], pattern, step, pixels, diff));
+        
+        return (diff == 0) ? 0 : 1;
+    }
+    
+    /*
+     * 8-connected component labels from 1, 0 for background; sizes receives each component's pixel count.
+     */
+    private static int[][] Label(int[][] bin, List<Integer> sizes) {
+        int height = bin.length;
+        int width = bin[0].length;
+        int[][] labels = new int[height][width];
+        int[] queue = new int[height * width];
+        
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                if (bin[r][c] == 0 || labels[r][c] != 0) {
+                    continue;
+                }
+                
+                int label = sizes.size() + 1;
+                int size = 0;
+                
+                labels[r][c] = label;
+                queue[size++] = r * width + c;
+                
+                for (int head = 0; head < size; head++) {
+                    int qr = queue[head] / width;
+                    int qc = queue[head] % width;
+                    
+                    for (int nr = Math.max(qr - 1, 0); nr <= Math.min(qr + 1, height - 1); nr++) {
+                        for (int nc = Math.max(qc - 1, 0); nc <= Math.min(qc + 1, width - 1); nc++) {
+                            if (bin[nr][nc] != 0 && labels[nr][nc] == 0) {
+                                labels[nr][nc] = label;
+                                queue[size++] = nr * width + nc;
+                            }
+                        }
+                    }
+                }
+                
+                sizes.add(size);
+            }
+        }
+        
+        return labels;
+    }
+    
+    /*
+     * Survivor thresholds through the class map and the separate hysteresis pass.
+     */
+    private static int[][] SurvivorReference(int[][] gray, int numDev, double intens) {
+        int[][] blurred = JCanny.Blur(gray, intens);
+        int[][] gx = Sobel.Horizontal(blurred);
+        int[][] gy = Sobel.Vertical(blurred);
+        float[][] mag = JCanny.Magnitude(gx, gy, null);
+        double[] sums = new double[3];
+        int[] stats = new int[2];
+        
+        JCanny.Suppression(mag, JCanny.Direction(gx, gy), sums);
+        JCanny.SurvivorStats(sums, stats);
+        
+        return JCanny.Hysteresis(mag, stats[0], stats[1], numDev, FRACT).toArray();
+    }
+    
+    /*
+     * Horizontal then vertical sampled Gaussian of radius rad, in double precision, cropped by rad on each side.
+     */
+    private static double[][] SampledGaussian(int[][] gray, int rad, double intens) {
+        int height = gray.length;
+        int width = gray[0].length;
+        double[] mask = Gaussian.Kernel(rad, intens);
+        double norm = 0;
+        double[][] rows = new double[height][width - 2 * rad];
+        double[][] out = new double[height - 2 * rad][width - 2 * rad];
+        
+        for (double m : mask) {
+            norm += m;
+        }
+        
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width - 2 * rad; c++) {
+                double sum = 0;
+                
+                for (int k = 0; k < mask.length; k++) {
+                    sum += mask[k] * gray[r][c + k];
+                }
+                
+                rows[r][c] = sum / norm;
+            }
+        }
+        
+        for (int r = 0; r < height - 2 * rad; r++) {
+            for (int c = 0; c < width - 2 * rad; c++) {
+                double sum = 0;
+                
+                for (int k = 0; k < mask.length; k++) {
+                    sum += mask[k] * rows[r + k][c];
+                }
+                
+                out[r][c] = sum / norm;
+            }
+        }
+        
+        return out;
+    }
+    
+    /*
+     * Largest and mean absolute difference between a blur and the exact one rounded to gray levels.
+     */
+    private static double[] BlurError(double[][] expected, int[][] blurred) {
+        double max = 0;
+        double sum = 0;
+        
+        for (int r = 0; r < expected.length; r++) {
+            for (int c = 0; c < expected[0].length; c++) {
+                double diff = Math.abs(blurred[r][c] - Math.round(expected[r][c]));
+                
+                max = Math.max(max, diff);
+                sum += diff;
+            }
+        }
+        
+        return new double[] { Math.round(max), sum / ((double) expected.length * expected[0].length) };
+    }
+    
+    /*
+     * Run OffHeapCanny on a copy of the image in off-heap memory and bring the edges back as an EdgeMap.
+     */
+    private static EdgeMap OffHeap(int[][] gray, int numDev, double fract, double intens) {
+        try (OffHeapPlane plane = OffHeapPlane.Bytes(gray.length, gray[0].length)) {
+            for (int r = 0; r < gray.length; r++) {
+                plane.writeGrayRow(r, gray[r]);
+            }
+            
+            try (OffHeapPlane bits = OffHeapCanny.CannyEdges(plane, numDev, fract, intens, 64)) {
+                EdgeMap edges = new EdgeMap((int) bits.getHeight(), bits.getWidth());
+                
+                for (int r = 0; r < edges.getHeight(); r++) {
+                    for (int c = 0; c < edges.getWidth(); c++) {
+                        if (bits.getBit(r, c)) {
+                            edges.set(r, c);
+                        }
+                    }
+                }
+                
+                return edges;
+            }
+        }
+    }
+    
+    /*
+     * Number of pixels where the backend and reference disagree; a size mismatch counts every pixel.
+     */
+    private static long Compare(int[][] ref, EdgeMap edges) {
+        int height = ref.length;
+        int width = ref[0].length;
+        long diff = 0;
+        
+        if (edges == null || edges.getHeight() != height || edges.getWidth() != width) {
+            return (long) height * width;
+        }
+        
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                if ((ref[r][c] != 0) != edges.get(r, c)) {
+                    diff++;
+                }
+            }
+        }
+        
+        return diff;
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2016 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package jcanny;
+
+import java.util.Random;
+
+/**
+ * This class generates deterministic grayscale test images (values 0-255) for the regression harness.
+ * The same name, size and seed always give the same pixels.
+ * 
+ * @author robert
+ */
+
+public class SyntheticImages {
+    public static final String[] NAMES = { "steps", "ramps", "circles", "noise" };
+    
+    /**
+     * Send this method a pattern name and size to get the image.
+     * 
+     * @param name      String, one of NAMES
+     * @param height    int, number of rows
+     * @param width     int, number of columns
+     * @param seed      long, seed for the noise pattern
+     * @return gray     int[][], grayscale pixel values
+     */
+    public static int[][] Generate(String name, int height, int width, long seed) {
+        switch (name) {
+            case "steps" :
+                return Steps(height, width);
+            case "ramps" :
+                return Ramps(height, width);
+            case "circles" :
+                return Circles(height, width);
+            case "noise" :
+                return Noise(height, width, seed);
+            default :
+                throw new IllegalArgumentException("ERROR: Unknown synthetic image " + name);
+        }
+    }
+    
+    /**
+     * Horizontal and vertical steps of different contrast, on a 4 x 4 grid of blocks.
+     */
+    public static int[][] Steps(int height, int width) {
+        int[][] gray = new int[height][width];
+        
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                int block = (4 * r / height) * 4 + (4 * c / width);
+                
+                gray[r][c] = (block * 53) % 256;
+            }
+        }
+        
+        return gray;
+    }
+    
+    /**
+     * A horizontal ramp in the top half and a diagonal ramp with a step through it in the bottom half.
+     */
+    public static int[][] Ramps(int height, int width) {
+        int[][] gray = new int[height][width];
+        
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                if (r < height / 2) {
+                    gray[r][c] = 255 * c / Math.max(width - 1, 1);
+                } else {
+                    int value = 200 * (r + c) / Math.max(height + width - 2, 1);
+                    
+                    gray[r][c] = (c > width / 2) ? Math.min(value + 40, 255) : value;
+                }
+            }
+        }
+        
+        return gray;
+    }
+    
+    /**
+     * Concentric rings of alternating brightness, which exercise every gradient direction.
+     */
+    public static int[][] Circles(int height, int width) {
+        int[][] gray = new int[height][width];
+        double ring = Math.max(Math.min(height, width) / 10., 4);
+        
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                double dist = Math.hypot(r - height / 2., c - width / 2.);
+                
+                gray[r][c] = (((int) (dist / ring)) % 2 == 0) ? 40 : 210;
+            }
+        }
+        
+        return gray;
+    }
+    
+    /**
+     * A bright disc on a dark background with Gaussian noise (std. dev. 20) added.
+     */
+    public static int[][] Noise(int height, int width, long seed) {
+        int[][] gray = new int[height][width];
+        Random rnd = new Random(seed);
+        
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                double dr = (r - height / 2.) / height;
+                double dc = (c - width / 2.) / width;
+                int value = (dr * dr + dc * dc < 0.08) ? 170 : 70;
+                
+                gray[r][c] = Math.max(0, Math.min(255, value + (int) Math.round(rnd.nextGaussian() * 20)));
+            }
+        }
+        
+        return gray;
+    }
+}
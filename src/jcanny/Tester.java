@@ -18,7 +18,11 @@
 package jcanny;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
 import javax.imageio.ImageIO;
 
 /**
@@ -31,6 +35,7 @@ public class Tester {
     //Canny parameters
     private static final double CANNY_THRESHOLD_RATIO = .2; //Suggested range .2 - .4
     private static final int CANNY_STD_DEV = 1;             //Range 1-3
+    private static final int PNG_DEFLATE_LEVEL = Deflater.BEST_SPEED;
     
     //I/O parameters
     private static String imgFileName;
@@ -53,8 +58,24 @@ public class Tester {
         //Sample JCanny usage
         try {
             BufferedImage input = ImageIO.read(new File(imgFileName));
-            BufferedImage output = JCanny.CannyEdges(input, CANNY_STD_DEV, CANNY_THRESHOLD_RATIO);
-            ImageIO.write(output, imgExt, new File(imgOutFile));
+            
+            //PNG, PBM and RLE are written straight from the bitset; other formats go through ImageIO
+            if (imgExt.equals("png") || imgExt.equals("pbm") || imgExt.equals("rle")) {
+                EdgeMap edges = JCanny.CannyEdgeMap(input, CANNY_STD_DEV, CANNY_THRESHOLD_RATIO);
+                
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(imgOutFile))) {
+                    if (imgExt.equals("png")) {
+                        EdgeWriter.WritePNG(edges, out, 1, PNG_DEFLATE_LEVEL);
+                    } else if (imgExt.equals("pbm")) {
+                        EdgeWriter.WritePBM(edges, out);
+                    } else {
+                        EdgeWriter.WriteRLE(edges, out);
+                    }
+                }
+            } else {
+                BufferedImage output = JCanny.CannyEdges(input, CANNY_STD_DEV, CANNY_THRESHOLD_RATIO);
+                ImageIO.write(output, imgExt, new File(imgOutFile));
+            }
         } catch (Exception ex) {
             System.out.println("ERROR ACCESING IMAGE FILE:\n" + ex.getMessage());
         }
@@ -0,0 +1,493 @@
+/**
+ * Copyright 2016 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package jcanny;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class runs detections for many callers on one shared pool of threads. Each detection is split into tile
+ * tasks (bands of rows, as in FusedCanny): suppression tiles, then hysteresis tiles once the statistics are known.
+ * Whenever a thread is free it takes the next tile of the highest priority class that has work, and within a class
+ * it takes tiles from the tenants in turn. So a small interactive request waits for at most one tile of a large
+ * bulk job, and one tenant's big job does not starve another tenant's.
+ * 
+ * Blurs above the recursive switch run as tiles too, before the suppression tiles start: strips of columns for the
+ * vertical pass, preceded by bands of rows for the horizontal pass when the separable blur is selected.
+ * 
+ * Latency from submit to result is recorded per priority class.
+ * 
+ * @author robert
+ */
+
+public class TileScheduler {
+    public static final int INTERACTIVE = 0;    //Served before any bulk tile
+    public static final int BULK = 1;           //Runs when no interactive tiles are waiting
+    
+    private static final String[] CLASS_NAMES = { "interactive", "bulk" };
+    private static final int TILE_ROWS = 64;
+    private static final int BUCKETS = 40;      //Latency histogram, power-of-two microsecond buckets
+    
+    private final int tileRows;
+    private final Thread[] workers;
+    private final List<LinkedHashMap<String, ArrayDeque<Runnable>>> queues = new ArrayList<>();
+    private final AtomicLongArray[] latency = new AtomicLongArray[CLASS_NAMES.length];
+    private final Object lock = new Object();
+    private boolean running = true;
+    private int activeJobs;     //Submitted and not yet done; workers outlive shutdown() until this is 0
+    
+    /**
+     * @param threads   int, number of worker threads
+     */
+    public TileScheduler(int threads) {
+        this(threads, TILE_ROWS);
+    }
+    
+    /**
+     * @param threads   int, number of worker threads
+     * @param tileRows  int, rows per tile; smaller tiles preempt sooner but recompute more halo rows
+     */
+    public TileScheduler(int threads, int tileRows) {
+        if (threads < 1 || tileRows < 1) {
+            throw new IllegalArgumentException("ERROR: Invalid scheduler size!");
+        }
+        
+        this.tileRows = tileRows;
+        this.workers = new Thread[threads];
+        
+        for (int p = 0; p < CLASS_NAMES.length; p++) {
+            queues.add(new LinkedHashMap<>());
+            latency[p] = new AtomicLongArray(BUCKETS);
+        }
+        
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::Work, "canny-tile-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+    
+    /**
+     * Queue a detection.
+     * 
+     * @param img               BufferedImage, the input image
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @param intens            Intensity (sigma) of the Gaussian blur
+     * @param priority          int, INTERACTIVE or BULK
+     * @param tenant            String, who the work is for; tenants in the same class share the threads evenly
+     * @return result           CompletableFuture of the same EdgeMap JCanny.CannyEdgeMap returns
+     */
+    public CompletableFuture<EdgeMap> submit(BufferedImage img, int numberDeviations, double fract, double intens,
+            int priority, String tenant) {
+        return submit(ImageUtils.GSArray(img), numberDeviations, fract, intens, priority, tenant);
+    }
+    
+    /**
+     * Queue a detection of a grayscale array.
+     * 
+     * @param gray              int[][], grayscale pixel values 0-255
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @param intens            Intensity (sigma) of the Gaussian blur
+     * @param priority          int, INTERACTIVE or BULK
+     * @param tenant            String, who the work is for; tenants in the same class share the threads evenly
+     * @return result           CompletableFuture of the same EdgeMap JCanny.CannyEdgeMap returns
+     * @throws RejectedExecutionException if the scheduler has been shut down
+     */
+    public CompletableFuture<EdgeMap> submit(int[][] gray, int numberDeviations, double fract, double intens,
+            int priority, String tenant) {
+        if (priority < 0 || priority >= CLASS_NAMES.length) {
+            throw new IllegalArgumentException("ERROR: Unknown priority class " + priority);
+        }
+        
+        Job job = new Job(gray, numberDeviations, fract, intens, priority, tenant);
+        
+        synchronized (lock) {
+            if (!running) {
+                throw new RejectedExecutionException("ERROR: Scheduler has been shut down!");
+            }
+            
+            activeJobs++;
+        }
+        
+        job.result.whenComplete((edges, ex) -> {
+            synchronized (lock) {
+                activeJobs--;
+                lock.notifyAll();
+            }
+        });
+        job.Start();
+        
+        return job.result;
+    }
+    
+    /**
+     * Refuse new submissions, and stop the workers once every job already submitted is done.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+    }
+    
+    /**
+     * @param priority  int, INTERACTIVE or BULK
+     * @param fraction  double, e.g. 0.99
+     * @return micros   long, upper bound of the latency bucket holding that fraction of the class's requests
+     */
+    public long LatencyPercentile(int priority, double fraction) {
+        AtomicLongArray hist = latency[priority];
+        long total = 0;
+        long seen = 0;
+        
+        for (int i = 0; i < BUCKETS; i++) {
+            total += hist.get(i);
+        }
+        
+        for (int i = 0; i < BUCKETS && total > 0; i++) {
+            seen += hist.get(i);
+            
+            if (seen >= Math.ceil(total * fraction)) {
+                return 2L << i;
+            }
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * @return text String, per class: completed requests and p50/p95/p99 latency in microseconds
+     */
+    public String Report() {
+        StringBuilder out = new StringBuilder();
+        
+        for (int p = 0; p < CLASS_NAMES.length; p++) {
+            long count = 0;
+            
+            for (int i = 0; i < BUCKETS; i++) {
+                count += latency[p].get(i);
+            }
+            
+            out.append(CLASS_NAMES[p]).append("_completed ").append(count).append('\n');
+            out.append(CLASS_NAMES[p]).append("_latency_p50_micros ").append(LatencyPercentile(p, 0.5)).append('\n');
+            out.append(CLASS_NAMES[p]).append("_latency_p95_micros ").append(LatencyPercentile(p, 0.95)).append('\n');
+            out.append(CLASS_NAMES[p]).append("_latency_p99_micros ").append(LatencyPercentile(p, 0.99)).append('\n');
+        }
+        
+        return out.toString();
+    }
+    
+    private void Enqueue(int priority, String tenant, List<Runnable> tiles) {
+        synchronized (lock) {
+            ArrayDeque<Runnable> queue = queues.get(priority).get(tenant);
+            
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.get(priority).put(tenant, queue);
+            }
+            
+            queue.addAll(tiles);
+            lock.notifyAll();
+        }
+    }
+    
+    /*
+     * Next tile: highest priority class first, tenants of a class in turn. Caller holds the lock.
+     */
+    private Runnable Next() {
+        for (LinkedHashMap<String, ArrayDeque<Runnable>> tenants : queues) {
+            Iterator<Map.Entry<String, ArrayDeque<Runnable>>> it = tenants.entrySet().iterator();
+            
+            if (it.hasNext()) {
+                Map.Entry<String, ArrayDeque<Runnable>> first = it.next();
+                Runnable tile = first.getValue().poll();
+                
+                //Move the tenant to the back of the line, or drop it if it has nothing left
+                it.remove();
+                
+                if (!first.getValue().isEmpty()) {
+                    tenants.put(first.getKey(), first.getValue());
+                }
+                
+                return tile;
+            }
+        }
+        
+        return null;
+    }
+    
+    private void Work() {
+        while (true) {
+            Runnable tile;
+            
+            synchronized (lock) {
+                tile = Next();
+                
+                while (tile == null) {
+                    //A running job may still queue its next phase, so wait for it
+                    if (!running && activeJobs == 0) {
+                        return;
+                    }
+                    
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    
+                    tile = Next();
+                }
+            }
+            
+            tile.run();
+        }
+    }
+    
+    /*
+     * One detection moving through its phases: optional whole-image blur, suppression tiles, hysteresis tiles.
+     */
+    private class Job {
+        final int[][] gray;
+        final int numDev;
+        final double fract;
+        final double intens;
+        final int priority;
+        final String tenant;
+        final long submitted = System.nanoTime();
+        final CompletableFuture<EdgeMap> result = new CompletableFuture<>();
+        final AtomicInteger remaining = new AtomicInteger();
+        FusedCanny.RowSource source;
+        int sourceWidth;
+        int rad;
+        int height;
+        int width;
+        float[][] mag;
+        double[][] sums;
+        EdgeMap edges;
+        
+        Job(int[][] gray, int numDev, double fract, double intens, int priority, String tenant) {
+            this.gray = gray;
+            this.numDev = numDev;
+            this.fract = fract;
+            this.intens = intens;
+            this.priority = priority;
+            this.tenant = tenant;
+        }
+        
+        void Start() {
+            if (gray == null || numDev <= 0 || fract <= 0 || intens <= 0) {
+                result.completeExceptionally(new IllegalArgumentException("ERROR: Invalid detector parameters!"));
+                return;
+            }
+            
+            rad = JCanny.BlurRadius(intens);
+            height = gray.length - 2 * rad - 2;
+            width = gray[0].length - 2 * rad - 2;
+            
+            if (height < 3 || width < 3) {
+                result.completeExceptionally(new IllegalArgumentException("ERROR: Image is too small for blur radius!"));
+                return;
+            }
+            
+            int mode = JCanny.BlurMode(intens);
+            boolean box = (mode & JCanny.BLUR_BOX) != 0;
+            
+            if ((mode & JCanny.BLUR_SEPARABLE) != 0) {
+                BlurRows(box);
+            } else if (mode != 0) {
+                BlurColumns(box, null);
+            } else {
+                source = (r, out) -> System.arraycopy(gray[(int) r], 0, out, 0, out.length);
+                sourceWidth = gray[0].length;
+                Suppress();
+            }
+        }
+        
+        /*
+         * Horizontal pass of the separable constant-time blur, a band of rows per tile.
+         */
+        void BlurRows(boolean box) {
+            int rows = gray.length;
+            int count = (rows + tileRows - 1) / tileRows;
+            float[][] plane = new float[rows][gray[0].length - 2 * rad];
+            List<Runnable> tiles = new ArrayList<>();
+            
+            remaining.set(count);
+            
+            for (int t = 0; t < count; t++) {
+                int first = t * tileRows;
+                int last = Math.min(first + tileRows, rows);
+                
+                tiles.add(Tile(() -> {
+                    Gaussian.BlurRows(gray, rad, intens, box, plane, first, last);
+                    
+                    if (remaining.decrementAndGet() == 0) {
+                        BlurColumns(box, plane);
+                    }
+                }));
+            }
+            
+            Enqueue(priority, tenant, tiles);
+        }
+        
+        /*
+         * Vertical pass, tileRows columns per tile so a tile costs about as much as a band of rows. It filters the
+         * plane BlurRows filled, or with a null plane the grayscale columns directly, as BlurGS does.
+         */
+        void BlurColumns(boolean box, float[][] plane) {
+            int cols = gray[0].length - 2 * rad;
+            int count = (cols + tileRows - 1) / tileRows;
+            int[][] blurred = new int[gray.length - 2 * rad][cols];
+            List<Runnable> tiles = new ArrayList<>();
+            
+            remaining.set(count);
+            
+            for (int t = 0; t < count; t++) {
+                int first = t * tileRows;
+                int last = Math.min(first + tileRows, cols);
+                
+                tiles.add(Tile(() -> {
+                    if (plane != null) {
+                        Gaussian.BlurColumns(plane, rad, intens, box, blurred, first, last);
+                    } else {
+                        Gaussian.BlurColumns(gray, rad, intens, box, blurred, first, last);
+                    }
+                    
+                    if (remaining.decrementAndGet() == 0) {
+                        source = (r, out) -> System.arraycopy(blurred[(int) r], 0, out, 0, out.length);
+                        sourceWidth = width + 2;
+                        rad = 0;
+                        Suppress();
+                    }
+                }));
+            }
+            
+            Enqueue(priority, tenant, tiles);
+        }
+        
+        void Suppress() {
+            int count = (height + tileRows - 1) / tileRows;
+            List<Runnable> tiles = new ArrayList<>();
+            
+            mag = new float[height][width];
+            sums = new double[count][];
+            remaining.set(count);
+            
+            for (int t = 0; t < count; t++) {
+                int index = t;
+                int first = t * tileRows;
+                int last = Math.min(first + tileRows, height);
+                
+                tiles.add(Tile(() -> {
+                    sums[index] = FusedCanny.Band(source, sourceWidth, rad, intens, first, last, last, height,
+                            (r, row) -> System.arraycopy(row, 0, mag[(int) r], 0, width));
+                    
+                    if (remaining.decrementAndGet() == 0) {
+                        Threshold();
+                    }
+                }));
+            }
+            
+            Enqueue(priority, tenant, tiles);
+        }
+        
+        void Threshold() {
+            int[] stats = new int[2];
+            int edgeHeight = height - 2;
+            int count = (edgeHeight + tileRows - 1) / tileRows;
+            List<Runnable> tiles = new ArrayList<>();
+            
+            if (!FusedCanny.Stats(sums, (double) height * width, stats)) {
+                FusedCanny.ExactStats(source, sourceWidth, rad, intens, height, stats);
+            }
+            
+            double tHi = stats[0] + (numDev * stats[1]);
+            double tLo = tHi * fract;
+            
+            edges = new EdgeMap(edgeHeight, width - 2);
+            remaining.set(count);
+            
+            for (int t = 0; t < count; t++) {
+                int first = t * tileRows;
+                int last = Math.min(first + tileRows, edgeHeight);
+                
+                tiles.add(Tile(() -> {
+                    //Neighboring tiles can share bitset words, so bits are set under the map's lock
+                    FusedCanny.HysteresisStream hysteresis = new FusedCanny.HysteresisStream(width, tHi, tLo,
+                            first, last, (e, row) -> {
+                                synchronized (edges) {
+                                    for (int c = 0; c < row.length; c++) {
+                                        if (row[c]) {
+                                            edges.set((int) e, c);
+                                        }
+                                    }
+                                }
+                            });
+                    
+                    for (int r = first; r < last + 2; r++) {
+                        hysteresis.Row(r, mag[r]);
+                    }
+                    
+                    if (remaining.decrementAndGet() == 0) {
+                        Record(System.nanoTime() - submitted);
+                        
+                        synchronized (edges) {
+                            result.complete(edges);
+                        }
+                    }
+                }));
+            }
+            
+            Enqueue(priority, tenant, tiles);
+        }
+        
+        void Record(long nanos) {
+            long micros = Math.max(nanos / 1000, 1);
+            
+            latency[priority].incrementAndGet(Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1));
+        }
+        
+        /*
+         * Wrap a tile so a failure fails the job and the job's remaining tiles do nothing.
+         */
+        Runnable Tile(Runnable work) {
+            return () -> {
+                if (result.isDone()) {
+                    return;
+                }
+                
+                try {
+                    work.run();
+                } catch (Throwable ex) {
+                    result.completeExceptionally(ex);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,624 @@
+/**
+ * Copyright 2016 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package jcanny.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import jcanny.EdgeMap;
+import jcanny.EdgeWriter;
+import jcanny.ImageUtils;
+import jcanny.JCanny;
+
+/**
+ * This class is an optional HTTP front end for the detector, built only on the JDK's com.sun.net.httpserver.
+ * 
+ * POST /edges          Body is an image file (any format ImageIO reads), or raw 8-bit gray pixels when the
+ *                      Content-Type is application/octet-stream and the width and height parameters are given.
+ *                      Parameters: format=png|bitset|coords (default png, 1-bit grayscale), dev, fract, intens.
+ *                      bitset returns EdgeMap words as little-endian longs, with X-Edge-Width/X-Edge-Height headers;
+ *                      coords returns one "x y" line per edge pixel.
+ * GET /metrics         Counters, throughput and latency percentiles as "name value" lines.
+ * 
+ * Detection runs on a fixed pool of worker threads with a bounded queue; when it is full the request gets a 429.
+ * While every worker is busy, small images are collected for a short time and run back to back on one worker, so
+ * a burst of thumbnails costs one queue slot instead of many; a batch holds at most BATCH_BUDGET pixels, and with a
+ * worker idle each image is handed over on its own. Connections are handled on virtual threads when the JVM has
+ * them, since they mostly wait on I/O and on their result.
+ * 
+ * Memory is bounded in two steps. Before the body is read, a request must declare its Content-Length, and the
+ * bodies held at once may not add up to more than MAX_BUFFERED bytes (429 otherwise). Before the job is queued,
+ * the image size from the query or the image header is checked against a pixel limit (413 otherwise): decoding
+ * happens on the workers, at most one image per worker, and costs up to BYTES_PER_PIXEL for the decoded image,
+ * its grayscale array and the detector's planes, so the limit is the heap divided among the workers at that
+ * cost, and never more than MAX_PIXELS.
+ * 
+ * @author robert
+ */
+
+public class EdgeServer {
+    private static final int PORT = 8080;
+    private static final int MAX_BODY = 1 << 28;            //Largest accepted upload, bytes
+    private static final int MAX_BUFFERED = 1 << 30;        //Request bodies held at once, bytes
+    private static final int BATCH_PIXELS = 512 * 512;      //Images up to this size are micro-batched
+    private static final int BATCH_SIZE = 16;               //Most images run in one batch
+    private static final int BATCH_BUDGET = 1 << 20;        //Most pixels run in one batch
+    private static final long BATCH_WAIT_NANOS = 2000000;   //Longest a small image waits for company
+    private static final int MAX_PIXELS = 1 << 28;          //Largest accepted image, pixels
+    private static final int BYTES_PER_PIXEL = 24;          //Decoded image (up to 8), GSArray (4), detector (12)
+    private static final int CANNY_STD_DEV = 1;
+    private static final double CANNY_THRESHOLD_RATIO = .2;
+    private static final double GAUSSIAN_INTENSITY = 1.5;
+    
+    private final HttpServer http;
+    private final ExecutorService handlers;
+    private final ThreadPoolExecutor workers;
+    private final BlockingQueue<Job> small;
+    private final Thread batcher;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final Semaphore buffered = new Semaphore(MAX_BUFFERED >> 10);     //Kilobytes of request bodies
+    private final long maxPixels;
+    private volatile boolean running = true;
+    
+    /*
+     * One detection request waiting for a worker: the undecoded body and the image size read from its header.
+     */
+    private static class Job {
+        final byte[] body;
+        final boolean raw;
+        final int height;
+        final int width;
+        final int numDev;
+        final double fract;
+        final double intens;
+        final CompletableFuture<EdgeMap> result = new CompletableFuture<>();
+        
+        Job(byte[] body, boolean raw, int height, int width, int numDev, double fract, double intens) {
+            this.body = body;
+            this.raw = raw;
+            this.height = height;
+            this.width = width;
+            this.numDev = numDev;
+            this.fract = fract;
+            this.intens = intens;
+        }
+        
+        long Pixels() {
+            return (long) height * width;
+        }
+    }
+    
+    /**
+     * Create a server; call start() to begin accepting requests.
+     * 
+     * @param port          int, port to listen on, 0 for any free port
+     * @param threads       int, number of detection workers
+     * @param queueLength   int, detection tasks that may wait for a worker before requests are rejected
+     * @throws IOException  if the port cannot be bound
+     */
+    public EdgeServer(int port, int threads, int queueLength) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(port), 0);
+        handlers = HandlerPool();
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueLength), new ThreadPoolExecutor.AbortPolicy());
+        small = new ArrayBlockingQueue<>(queueLength * BATCH_SIZE);
+        maxPixels = Math.min(MAX_PIXELS, Runtime.getRuntime().maxMemory() / ((long) threads * BYTES_PER_PIXEL));
+        batcher = new Thread(this::Batch, "edge-batcher");
+        batcher.setDaemon(true);
+        
+        http.setExecutor(handlers);
+        http.createContext("/edges", this::HandleEdges);
+        http.createContext("/metrics", this::HandleMetrics);
+    }
+    
+    public void start() {
+        batcher.start();
+        http.start();
+    }
+    
+    /**
+     * Stop accepting requests, let detections already with the workers finish, fail the small images still
+     * waiting to be batched, and release the threads.
+     */
+    public void stop() {
+        running = false;
+        http.stop(0);
+        batcher.interrupt();
+        
+        try {
+            batcher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        
+        Drain();
+        workers.shutdown();
+        handlers.shutdown();
+    }
+    
+    public int getPort() {
+        return http.getAddress().getPort();
+    }
+    
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+    
+    public long getMaxPixels() {
+        return maxPixels;
+    }
+    
+    /**
+     * Command-line arguments: port, worker threads, queue length (all optional).
+     */
+    public static void main(String[] args) throws IOException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : PORT;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int queue = (args.length > 2) ? Integer.parseInt(args[2]) : 4 * threads;
+        EdgeServer server = new EdgeServer(port, threads, queue);
+        
+        server.start();
+        System.out.println("Edge server listening on port " + server.getPort() + " with " + threads + " workers");
+    }
+    
+    /*
+     * Queue a job: small images go to the batcher, large ones straight to the workers.
+     * Returns false if there is no room.
+     */
+    private boolean Submit(Job job) {
+        if (job.Pixels() <= BATCH_PIXELS) {
+            if (!small.offer(job)) {
+                return false;
+            }
+            
+            //The batcher may already have stopped; stop() drains whatever it left
+            if (!running) {
+                Drain();
+            }
+            
+            return true;
+        }
+        
+        try {
+            workers.execute(() -> Run(job));
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+        
+        metrics.Accepted();
+        
+        return true;
+    }
+    
+    /*
+     * Fail every small job still waiting for the batcher.
+     */
+    private void Drain() {
+        Job job;
+        
+        while ((job = small.poll()) != null) {
+            job.result.completeExceptionally(new IllegalStateException("ERROR: Server shutting down"));
+        }
+    }
+    
+    /*
+     * Batcher thread: take a small job and, while every worker is busy, wait briefly for more within the batch
+     * limits; then hand them to one worker together.
+     */
+    private void Batch() {
+        while (running) {
+            List<Job> batch = new ArrayList<>();
+            
+            try {
+                batch.add(small.take());
+                
+                long pixels = batch.get(0).Pixels();
+                long deadline = System.nanoTime() + BATCH_WAIT_NANOS;
+                
+                //With a worker idle, batching would only serialize images it could run alongside
+                while (batch.size() < BATCH_SIZE && pixels < BATCH_BUDGET && Busy()) {
+                    Job next = small.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    
+                    if (next == null) {
+                        break;
+                    }
+                    
+                    batch.add(next);
+                    pixels += next.Pixels();
+                }
+            } catch (InterruptedException ex) {
+                //Stopping: fail the jobs gathered so far; stop() fails the rest
+                for (Job job : batch) {
+                    job.result.completeExceptionally(new IllegalStateException("ERROR: Server shutting down"));
+                }
+                
+                Thread.currentThread().interrupt();
+                return;
+            }
+            
+            try {
+                workers.execute(() -> {
+                    metrics.Batch(batch.size());
+                    
+                    for (Job job : batch) {
+                        Run(job);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                for (Job job : batch) {
+                    job.result.completeExceptionally(ex);
+                }
+                
+                continue;
+            }
+            
+            for (int i = 0; i < batch.size(); i++) {
+                metrics.Accepted();
+            }
+        }
+    }
+    
+    /*
+     * True when no worker is free: all of them are running or the pool already has tasks waiting.
+     */
+    private boolean Busy() {
+        return workers.getActiveCount() + workers.getQueue().size() >= workers.getMaximumPoolSize();
+    }
+    
+    private static void Run(Job job) {
+        try {
+            EdgeMap edges = JCanny.CannyEdgeMap(Decode(job), job.numDev, job.fract, job.intens);
+            
+            if (edges == null) {
+                throw new IllegalArgumentException("ERROR: Invalid detection parameters!");
+            }
+            
+            job.result.complete(edges);
+        } catch (Throwable ex) {
+            //Errors too (out of memory on a huge image): the handler is waiting on this future
+            job.result.completeExceptionally(ex);
+        }
+    }
+    
+    private void HandleEdges(HttpExchange exchange) throws IOException {
+        long arrived = System.nanoTime();
+        
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                Send(exchange, 405, "ERROR: Use POST\n");
+                return;
+            }
+            
+            Map<String, String> params = Query(exchange);
+            String format = params.getOrDefault("format", "png");
+            
+            if (!format.equals("png") && !format.equals("bitset") && !format.equals("coords")) {
+                Send(exchange, 400, "ERROR: format must be png, bitset or coords\n");
+                return;
+            }
+            
+            String length = exchange.getRequestHeaders().getFirst("Content-Length");
+            long size;
+            
+            try {
+                size = (length != null) ? Long.parseLong(length) : -1;
+            } catch (NumberFormatException ex) {
+                size = -1;
+            }
+            
+            if (size < 0) {
+                Send(exchange, 411, "ERROR: Content-Length required\n");
+                return;
+            }
+            
+            if (size > MAX_BODY) {
+                Send(exchange, 413, "ERROR: Upload too large\n");
+                return;
+            }
+            
+            //Admission before reading a byte, so an overloaded server does not buffer the uploads it rejects
+            int kilobytes = (int) ((size + 1023) >> 10);
+            
+            if (!buffered.tryAcquire(kilobytes)) {
+                Reject(exchange);
+                return;
+            }
+            
+            try {
+                Detect(exchange, params, format, (int) size, arrived);
+            } finally {
+                buffered.release(kilobytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    private void Detect(HttpExchange exchange, Map<String, String> params, String format, int size, long arrived)
+            throws IOException {
+        byte[] body = ReadBody(exchange.getRequestBody(), size);
+        
+        if (body == null) {
+            Send(exchange, 400, "ERROR: Body does not match Content-Length\n");
+            return;
+        }
+        
+        Job job;
+        
+        try {
+            job = Probe(exchange, params, body);
+        } catch (IllegalArgumentException | IOException ex) {
+            metrics.Failed();
+            Send(exchange, 400, ex.getMessage() + "\n");
+            return;
+        }
+        
+        //Decoding a larger image could exhaust the heap on a worker; refuse it while it is still compressed
+        if (job.Pixels() > maxPixels) {
+            metrics.Failed();
+            Send(exchange, 413, "ERROR: Image too large, limit " + maxPixels + " pixels\n");
+            return;
+        }
+        
+        if (!Submit(job)) {
+            Reject(exchange);
+            return;
+        }
+        
+        EdgeMap edges;
+        
+        try {
+            edges = job.result.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            
+            if (cause instanceof RejectedExecutionException) {
+                Reject(exchange);
+                return;
+            }
+            
+            metrics.Failed();
+            
+            if (cause instanceof IllegalStateException) {
+                Send(exchange, 503, cause.getMessage() + "\n");
+            } else if (cause instanceof IllegalArgumentException || cause instanceof IOException) {
+                Send(exchange, 400, "ERROR: Detection failed: " + cause + "\n");
+            } else {
+                Send(exchange, 500, "ERROR: Detection failed: " + cause + "\n");
+            }
+            
+            return;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            metrics.Failed();
+            Send(exchange, 503, "ERROR: Server shutting down\n");
+            return;
+        }
+        
+        SendEdges(exchange, edges, format);
+        metrics.Completed(System.nanoTime() - arrived, job.Pixels());
+    }
+    
+    private void HandleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            Send(exchange, 200, metrics.Report());
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    private void Reject(HttpExchange exchange) throws IOException {
+        metrics.Rejected();
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        Send(exchange, 429, "ERROR: Too many requests\n");
+    }
+    
+    /*
+     * Check the parameters and find the image size, from the query for raw pixels or from the image header.
+     */
+    private static Job Probe(HttpExchange exchange, Map<String, String> params, byte[] body) throws IOException {
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        boolean raw = type != null && type.startsWith("application/octet-stream");
+        int numDev = Integer.parseInt(params.getOrDefault("dev", String.valueOf(CANNY_STD_DEV)));
+        double fract = Double.parseDouble(params.getOrDefault("fract", String.valueOf(CANNY_THRESHOLD_RATIO)));
+        double intens = Double.parseDouble(params.getOrDefault("intens", String.valueOf(GAUSSIAN_INTENSITY)));
+        int width;
+        int height;
+        
+        if (raw) {
+            if (!params.containsKey("width") || !params.containsKey("height")) {
+                throw new IllegalArgumentException("ERROR: Raw upload needs width and height");
+            }
+            
+            width = Integer.parseInt(params.get("width"));
+            height = Integer.parseInt(params.get("height"));
+            
+            if (width < 1 || height < 1 || (long) width * height != body.length) {
+                throw new IllegalArgumentException("ERROR: Raw upload is not width * height bytes");
+            }
+        } else {
+            try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(body))) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                
+                if (!readers.hasNext()) {
+                    throw new IllegalArgumentException("ERROR: Unreadable image");
+                }
+                
+                ImageReader reader = readers.next();
+                
+                try {
+                    reader.setInput(in);
+                    width = reader.getWidth(0);
+                    height = reader.getHeight(0);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+        
+        return new Job(body, raw, height, width, numDev, fract, intens);
+    }
+    
+    /*
+     * Decode a job's body into a grayscale array, raw or through ImageIO. Runs on a worker.
+     */
+    private static int[][] Decode(Job job) throws IOException {
+        if (job.raw) {
+            int[][] gray = new int[job.height][job.width];
+            
+            for (int r = 0; r < job.height; r++) {
+                for (int c = 0; c < job.width; c++) {
+                    gray[r][c] = job.body[r * job.width + c] & 0xff;
+                }
+            }
+            
+            return gray;
+        }
+        
+        BufferedImage img = ImageIO.read(new ByteArrayInputStream(job.body));
+        
+        if (img == null) {
+            throw new IllegalArgumentException("ERROR: Unreadable image");
+        }
+        
+        return ImageUtils.GSArray(img);
+    }
+    
+    private static void SendEdges(HttpExchange exchange, EdgeMap edges, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        exchange.getResponseHeaders().set("X-Edge-Width", String.valueOf(edges.getWidth()));
+        exchange.getResponseHeaders().set("X-Edge-Height", String.valueOf(edges.getHeight()));
+        
+        if (format.equals("png")) {
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+            EdgeWriter.WritePNG(edges, out, 1, Deflater.BEST_SPEED);
+        } else if (format.equals("bitset")) {
+            long[] bits = edges.getBits();
+            ByteBuffer buf = ByteBuffer.allocate(bits.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+            
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            buf.asLongBuffer().put(bits);
+            out.write(buf.array());
+        } else {
+            StringBuilder text = new StringBuilder();
+            
+            exchange.getResponseHeaders().set("Content-Type", "text/plain");
+            
+            for (int r = 0; r < edges.getHeight(); r++) {
+                for (int c = 0; c < edges.getWidth(); c++) {
+                    if (edges.get(r, c)) {
+                        text.append(c).append(' ').append(r).append('\n');
+                    }
+                }
+            }
+            
+            out.write(text.toString().getBytes(StandardCharsets.US_ASCII));
+        }
+        
+        exchange.sendResponseHeaders(200, out.size());
+        
+        try (OutputStream body = exchange.getResponseBody()) {
+            out.writeTo(body);
+        }
+    }
+    
+    private static void Send(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(status, bytes.length);
+        
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(bytes);
+        }
+    }
+    
+    /*
+     * Read a body of the declared size, or return null if it is shorter or longer.
+     */
+    private static byte[] ReadBody(InputStream in, int size) throws IOException {
+        byte[] body = new byte[size];
+        int read = 0;
+        int n;
+        
+        while (read < size && (n = in.read(body, read, size - read)) > 0) {
+            read += n;
+        }
+        
+        return (read == size && in.read() < 0) ? body : null;
+    }
+    
+    private static Map<String, String> Query(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                
+                if (eq > 0) {
+                    params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                            URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                }
+            }
+        }
+        
+        return params;
+    }
+    
+    /*
+     * Virtual thread per connection on JVMs that have them (looked up reflectively to keep Java 8 source level).
+     */
+    private static ExecutorService HandlerPool() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright 2016 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package jcanny.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class is a load generator for EdgeServer. It posts raw synthetic gray images from several threads and
+ * reports throughput, latency percentiles and how many requests were rejected.
+ * 
+ * Command-line arguments: url threads requests width height [format]
+ * e.g. http://localhost:8080/edges 8 1000 640 480 bitset
+ * 
+ * @author robert
+ */
+
+public class LoadGenerator {
+    
+    public static void main(String[] args) throws Exception {
+        String url = args[0];
+        int threads = Integer.parseInt(args[1]);
+        int requests = Integer.parseInt(args[2]);
+        int width = Integer.parseInt(args[3]);
+        int height = Integer.parseInt(args[4]);
+        String format = (args.length > 5) ? args[5] : "bitset";
+        String target = url + "?format=" + format + "&width=" + width + "&height=" + height;
+        byte[] image = Image(width, height);
+        long[] latency = new long[requests];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger ok = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                int i;
+                
+                while ((i = next.getAndIncrement()) < requests) {
+                    long sent = System.nanoTime();
+                    int status = Post(target, image);
+                    
+                    latency[i] = System.nanoTime() - sent;
+                    
+                    if (status == 200) {
+                        ok.incrementAndGet();
+                    } else if (status == 429) {
+                        rejected.incrementAndGet();
+                    } else {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.DAYS);
+        
+        double seconds = (System.nanoTime() - start) / 1e9;
+        
+        Arrays.sort(latency);
+        System.out.println("requests " + requests + " in " + String.format("%.2f", seconds) + " s");
+        System.out.println("ok " + ok + ", rejected (429) " + rejected + ", failed " + failed);
+        System.out.println("throughput " + String.format("%.1f", ok.get() / seconds) + " images/s, "
+                + String.format("%.2f", ok.get() * (double) width * height / seconds / 1e6) + " MP/s");
+        System.out.println("latency ms p50 " + Millis(latency, 0.5) + ", p95 " + Millis(latency, 0.95)
+                + ", p99 " + Millis(latency, 0.99) + ", max " + Millis(latency, 1));
+    }
+    
+    /*
+     * Post one raw image and return the HTTP status, or -1 on connection errors.
+     */
+    private static int Post(String target, byte[] image) {
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(target).openConnection();
+            
+            conn.setDoOutput(true);
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", "application/octet-stream");
+            conn.setFixedLengthStreamingMode(image.length);
+            
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(image);
+            }
+            
+            int status = conn.getResponseCode();
+            InputStream in = (status < 400) ? conn.getInputStream() : conn.getErrorStream();
+            
+            if (in != null) {
+                Drain(in);
+            }
+            
+            return status;
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+    
+    private static void Drain(InputStream in) throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        byte[] buf = new byte[65536];
+        int n;
+        
+        try {
+            while ((n = in.read(buf)) > 0) {
+                sink.write(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    /*
+     * A gray image with a bright disc and a dark bar on a noisy background, the same for every run.
+     */
+    private static byte[] Image(int width, int height) {
+        byte[] gray = new byte[width * height];
+        Random rnd = new Random(42);
+        
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                double dr = (r - height / 2.) / height;
+                double dc = (c - width / 2.) / width;
+                int value = (dr * dr + dc * dc < 0.06) ? 200 : 90;
+                
+                if (r > height * 3 / 4 && c < width / 3) {
+                    value = 20;
+                }
+                
+                value += (int) (rnd.nextGaussian() * 8);
+                gray[r * width + c] = (byte) Math.max(0, Math.min(255, value));
+            }
+        }
+        
+        return gray;
+    }
+    
+    private static String Millis(long[] sorted, double fraction) {
+        int i = (int) Math.min(sorted.length - 1, Math.ceil(sorted.length * fraction) - 1);
+        
+        return String.format("%.1f", sorted[Math.max(i, 0)] / 1e6);
+    }
+}
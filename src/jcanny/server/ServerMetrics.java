@@ -0,0 +1,122 @@
+/**
+ * Copyright 2016 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package jcanny.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class keeps the counters and latency histogram of an EdgeServer. Latencies go into power-of-two
+ * microsecond buckets, so percentiles are accurate to within a factor of two and recording never allocates.
+ * 
+ * @author robert
+ */
+
+public class ServerMetrics {
+    private static final int BUCKETS = 40;  //2^40 us is about 12 days
+    
+    private final long started = System.nanoTime();
+    private final LongAdder accepted = new LongAdder();     //Requests queued for detection
+    private final LongAdder rejected = new LongAdder();     //Requests turned away with 429
+    private final LongAdder failed = new LongAdder();       //Requests that ended in an error
+    private final LongAdder completed = new LongAdder();    //Requests answered with edges
+    private final LongAdder batches = new LongAdder();      //Micro-batches of small images run
+    private final LongAdder batched = new LongAdder();      //Requests that ran inside a micro-batch
+    private final LongAdder pixels = new LongAdder();       //Pixels run through the detector
+    private final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+    
+    void Accepted() {
+        accepted.increment();
+    }
+    
+    void Rejected() {
+        rejected.increment();
+    }
+    
+    void Failed() {
+        failed.increment();
+    }
+    
+    void Batch(int size) {
+        batches.increment();
+        batched.add(size);
+    }
+    
+    /**
+     * Record a request that finished with edges.
+     * 
+     * @param nanos     long, time from arrival to response
+     * @param pixelCount long, pixels in the request's image
+     */
+    void Completed(long nanos, long pixelCount) {
+        long micros = Math.max(nanos / 1000, 1);
+        int bucket = Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        
+        completed.increment();
+        pixels.add(pixelCount);
+        latency.incrementAndGet(bucket);
+    }
+    
+    /**
+     * @param fraction  double, e.g. 0.99
+     * @return micros   long, upper bound of the bucket holding that fraction of latencies, 0 if none recorded
+     */
+    public long LatencyPercentile(double fraction) {
+        long total = 0;
+        
+        for (int i = 0; i < BUCKETS; i++) {
+            total += latency.get(i);
+        }
+        
+        long target = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        
+        for (int i = 0; i < BUCKETS && total > 0; i++) {
+            seen += latency.get(i);
+            
+            if (seen >= target) {
+                return 2L << i;
+            }
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * @return text String, one "name value" line per metric
+     */
+    public String Report() {
+        double seconds = (System.nanoTime() - started) / 1e9;
+        StringBuilder out = new StringBuilder();
+        
+        out.append("uptime_seconds ").append(String.format("%.1f", seconds)).append('\n');
+        out.append("requests_accepted ").append(accepted.sum()).append('\n');
+        out.append("requests_rejected ").append(rejected.sum()).append('\n');
+        out.append("requests_failed ").append(failed.sum()).append('\n');
+        out.append("requests_completed ").append(completed.sum()).append('\n');
+        out.append("batches ").append(batches.sum()).append('\n');
+        out.append("batched_requests ").append(batched.sum()).append('\n');
+        out.append("throughput_requests_per_second ").append(String.format("%.2f", completed.sum() / seconds)).append('\n');
+        out.append("throughput_megapixels_per_second ").append(String.format("%.2f", pixels.sum() / seconds / 1e6)).append('\n');
+        out.append("latency_p50_micros ").append(LatencyPercentile(0.5)).append('\n');
+        out.append("latency_p95_micros ").append(LatencyPercentile(0.95)).append('\n');
+        out.append("latency_p99_micros ").append(LatencyPercentile(0.99)).append('\n');
+        
+        return out.toString();
+    }
+}